@@ -0,0 +1,78 @@
+package com.sphenon.basics.state.benchmarks;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.state.classes.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+   Lookup, modification, identification, cloning and comparison
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccessBenchmark {
+
+    @Benchmark
+    public String tryGetValueFlat(StateFixture fixture) {
+        return fixture.state.tryGetValue(fixture.context, fixture.flat_name);
+    }
+
+    @Benchmark
+    public String tryGetValueDotted(StateFixture fixture) {
+        return fixture.state.tryGetValue(fixture.context, fixture.dotted_name);
+    }
+
+    @Benchmark
+    public StateComplex setValue(StateFixture fixture) {
+        fixture.state.setValue(fixture.context, fixture.flat_name, fixture.last_value);
+        fixture.state.setValue(fixture.context, fixture.flat_name, "a0");
+        return fixture.state;
+    }
+
+    @Benchmark
+    public String getId(StateFixture fixture) {
+        return fixture.state.getId(fixture.context);
+    }
+
+    @Benchmark
+    public String getDescription(StateFixture fixture) {
+        return fixture.state.getDescription(fixture.context);
+    }
+
+    /**
+       getId with the cache dropped before, i.e. the full computation
+    */
+    @Benchmark
+    public String getIdAfterChange(StateFixture fixture) {
+        fixture.state.invalidate(fixture.context);
+        return fixture.state.getId(fixture.context);
+    }
+
+    @Benchmark
+    public StateComplex cloneState(StateFixture fixture) {
+        return fixture.state.clone(fixture.context);
+    }
+
+    @Benchmark
+    public boolean equalsState(StateFixture fixture) {
+        return fixture.state.equals(fixture.context, fixture.other);
+    }
+}
@@ -0,0 +1,60 @@
+package com.sphenon.basics.state.benchmarks;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.state.classes.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+   Condition matching via the static entry point, with a reused condition
+   instance and with a compiled condition
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConditionBenchmark {
+
+    public String condition;
+    public StateComplexCondition reused;
+    public StateComplexConditionCompiled compiled;
+
+    @Setup(Level.Trial)
+    public void setup(StateFixture fixture) {
+        this.condition = "v0=a0 & " + fixture.flat_name + "=" + fixture.last_value + " | v0=a1";
+        this.reused    = new StateComplexCondition(fixture.context, this.condition);
+        this.compiled  = this.reused.compile(fixture.context, fixture.state.getSpecification(fixture.context));
+    }
+
+    @Benchmark
+    public boolean matchesStatic(StateFixture fixture) {
+        return StateComplexCondition.matches(fixture.context, this.condition, fixture.state);
+    }
+
+    @Benchmark
+    public boolean matchesReused(StateFixture fixture) {
+        return this.reused.matches(fixture.context, fixture.state);
+    }
+
+    @Benchmark
+    public boolean matchesCompiled(StateFixture fixture) {
+        return this.compiled.matches(fixture.context, fixture.state);
+    }
+}
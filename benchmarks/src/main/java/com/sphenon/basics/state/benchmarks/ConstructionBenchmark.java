@@ -0,0 +1,47 @@
+package com.sphenon.basics.state.benchmarks;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.state.classes.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+   Parsing of specifications and construction of states
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConstructionBenchmark {
+
+    @Benchmark
+    public StateComplex create(StateFixture fixture) {
+        return StateComplex.create(fixture.context, fixture.definition);
+    }
+
+    @Benchmark
+    public StateComplex.Specification computeValidValues(StateFixture fixture) {
+        return StateComplex.computeValidValues(fixture.context, fixture.variable_definitions, fixture.initial_values);
+    }
+
+    @Benchmark
+    public StateComplex construct(StateFixture fixture) {
+        return new StateComplex(fixture.context, fixture.state.getSpecification(fixture.context), fixture.initial_values.clone());
+    }
+}
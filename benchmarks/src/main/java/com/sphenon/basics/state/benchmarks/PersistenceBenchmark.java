@@ -0,0 +1,62 @@
+package com.sphenon.basics.state.benchmarks;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.state.classes.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+   Persistence round trips; states with sub states cannot be persisted as
+   persistent type, so the flat state of the fixture is used
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PersistenceBenchmark {
+
+    public StateComplex flat;
+    public ByteBuffer buffer;
+
+    @Setup(Level.Trial)
+    public void setup(StateFixture fixture) {
+        this.flat   = StateComplex.create(fixture.context, fixture.definition);
+        this.buffer = ByteBuffer.allocate(StateComplexCodec.getEncodedSize(fixture.context, fixture.state));
+    }
+
+    @Benchmark
+    public Object saveToPersistentType(StateFixture fixture) {
+        return this.flat.saveToPersistentType(fixture.context);
+    }
+
+    @Benchmark
+    public StateComplex persistentTypeRoundTrip(StateFixture fixture) {
+        return this.flat.loadFromPersistentType(fixture.context, this.flat.saveToPersistentType(fixture.context));
+    }
+
+    @Benchmark
+    public StateComplex binaryRoundTrip(StateFixture fixture) {
+        this.buffer.clear();
+        fixture.state.saveToBinary(fixture.context, this.buffer);
+        this.buffer.flip();
+        return fixture.state.loadFromBinary(fixture.context, this.buffer);
+    }
+}
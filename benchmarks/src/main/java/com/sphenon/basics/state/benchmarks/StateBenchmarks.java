@@ -0,0 +1,40 @@
+package com.sphenon.basics.state.benchmarks;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+   Runs the benchmarks with the usual JMH command line options, writing
+   JSON results to jmh-result.json unless told otherwise
+*/
+public class StateBenchmarks {
+
+    static public void main(String[] arguments) throws Exception {
+        CommandLineOptions command_line = new CommandLineOptions(arguments);
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(command_line);
+        if (command_line.getResultFormat().hasValue() == false) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (command_line.getResult().hasValue() == false) {
+            options.result("jmh-result.json");
+        }
+        new Runner(options.build()).run();
+    }
+}
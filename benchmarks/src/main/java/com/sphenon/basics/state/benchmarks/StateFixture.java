@@ -0,0 +1,91 @@
+package com.sphenon.basics.state.benchmarks;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+
+import com.sphenon.basics.state.classes.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+   Parameterised complex states shared by the benchmarks: a number of
+   variables with a number of declared values each, nested via a sub
+   state "sub" up to the given depth.
+*/
+@State(Scope.Thread)
+public class StateFixture {
+
+    @Param({ "4", "16", "64" })
+    public int variables;
+
+    @Param({ "2", "8", "32" })
+    public int values;
+
+    @Param({ "0", "1", "3" })
+    public int depth;
+
+    public CallContext context;
+    public String definition;
+    public String[] variable_definitions;
+    public String[] initial_values;
+    public StateComplex state;
+    public StateComplex other;
+    public String flat_name;
+    public String dotted_name;
+    public String last_value;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.context              = RootContext.getRootContext();
+        this.definition           = definition(this.variables, this.values);
+        this.variable_definitions = this.definition.split("#")[0].split(";");
+        this.initial_values       = this.definition.split("#")[1].split(";");
+        this.state                = create(this.context, this.definition, this.depth);
+        this.other                = this.state.clone(this.context);
+        this.flat_name            = "v" + (this.variables - 1);
+        StringBuilder dotted = new StringBuilder();
+        for (int d=0; d<this.depth; d++) { dotted.append("sub."); }
+        this.dotted_name          = dotted.append(this.flat_name).toString();
+        this.last_value           = "a" + (this.values - 1);
+    }
+
+    static public String definition(int variables, int values) {
+        StringBuilder sb = new StringBuilder();
+        for (int v=0; v<variables; v++) {
+            if (v != 0) { sb.append(';'); }
+            sb.append('v').append(v).append(':');
+            for (int a=0; a<values; a++) {
+                if (a != 0) { sb.append(','); }
+                sb.append('a').append(a).append('/').append("Value ").append(a);
+            }
+        }
+        sb.append('#');
+        for (int v=0; v<variables; v++) {
+            if (v != 0) { sb.append(';'); }
+            sb.append("a0");
+        }
+        return sb.toString();
+    }
+
+    static public StateComplex create(CallContext context, String definition, int depth) {
+        StateComplex state = StateComplex.create(context, definition);
+        if (depth > 0) {
+            state.setSubStates(context, "sub", create(context, definition, depth - 1));
+        }
+        return state;
+    }
+}
@@ -0,0 +1,90 @@
+package com.sphenon.basics.state.benchmarks;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+
+import com.sphenon.basics.state.classes.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+   Bulk condition queries on a {@link StateTable}, with and without
+   value indexes, compared to matching each row individually.
+
+   Run with "mvn install", "mvn -f benchmarks/pom.xml package" and
+   "java -jar benchmarks/target/state-benchmarks.jar TableBenchmark".
+*/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xmx4g" })
+@State(Scope.Benchmark)
+public class TableBenchmark {
+
+    @Param({ "1000000", "10000000" })
+    public int rows;
+
+    @Param({ "false", "true" })
+    public boolean indexed;
+
+    @Param({ "color=red&!phase=done", "open&color=blue", "phase=run|color=green" })
+    public String condition;
+
+    public CallContext context;
+    public StateTable table;
+    public StateComplexConditionCompiled compiled;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        this.context = RootContext.getRootContext();
+        StateComplex.Specification specification = StateComplex.create(this.context, "main:open,closed;color:red,green,blue;phase:new,run,done").getSpecification(this.context);
+        this.table = new StateTable(this.context, specification, this.rows);
+        Random random = new Random(42);
+        for (int r=0; r<this.rows; r++) {
+            int row = this.table.addRow(this.context);
+            for (int slot=0; slot<3; slot++) {
+                this.table.setOrdinal(this.context, row, slot, 1 + random.nextInt(specification.getOrdinalCount(this.context, slot)));
+            }
+        }
+        if (this.indexed) {
+            this.table.createIndex(this.context, "main");
+            this.table.createIndex(this.context, "color");
+            this.table.createIndex(this.context, "phase");
+        }
+        this.compiled = StateComplexConditionCache.get(this.context).getCompiled(this.context, this.condition, specification);
+    }
+
+    @Benchmark
+    public BitSet select() {
+        return this.table.select(this.context, this.compiled);
+    }
+
+    @Benchmark
+    public int matchRows() {
+        int count = 0;
+        for (int r=0; r<this.rows; r++) {
+            if (this.compiled.matches(this.context, this.table.getRow(this.context, r))) { count++; }
+        }
+        return count;
+    }
+}
@@ -35,4 +35,16 @@ public interface State {
     public State clone(CallContext context);
 
     public boolean equals(CallContext context, State other);
+
+    /**
+       64 bit structural hash; states which are equal according to
+       {@link #equals(CallContext,State)} have the same fingerprint, so
+       comparisons may short-circuit on a mismatch.
+
+       The default hashes id and description; implementations whose
+       equality is not based on these have to override it.
+    */
+    default public long getFingerprint(CallContext context) {
+        return StateFingerprint.of(this.getId(context)) ^ StateFingerprint.mix(StateFingerprint.of(this.getDescription(context)));
+    }
 }
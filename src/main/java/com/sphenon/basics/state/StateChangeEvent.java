@@ -0,0 +1,111 @@
+package com.sphenon.basics.state;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+/**
+   Change of an observable state: the variables whose values differ,
+   with values before and after. Changes within a batch are coalesced, a
+   variable modified several times appears once with its first old and
+   last new value, and variables set back to their old value do not
+   appear at all.
+
+   Events are shared by all listeners of a state, so the accessors return
+   copies of the arrays.
+*/
+public class StateChangeEvent {
+
+    public StateChangeEvent (CallContext context, State source, String[] variables, String[] old_values, String[] new_values, boolean sub_states_changed) {
+        this.source             = source;
+        this.variables          = variables;
+        this.old_values         = old_values;
+        this.new_values         = new_values;
+        this.sub_states_changed = sub_states_changed;
+    }
+
+    protected State source;
+
+    public State getSource (CallContext context) {
+        return this.source;
+    }
+
+    protected String[] variables;
+
+    public String[] getVariables (CallContext context) {
+        return this.variables.clone();
+    }
+
+    protected String[] old_values;
+
+    public String[] getOldValues (CallContext context) {
+        return this.old_values.clone();
+    }
+
+    protected String[] new_values;
+
+    public String[] getNewValues (CallContext context) {
+        return this.new_values.clone();
+    }
+
+    protected boolean sub_states_changed;
+
+    public boolean getSubStatesChanged (CallContext context) {
+        return this.sub_states_changed;
+    }
+
+    /**
+       Event restricted to the given variables, or null if none of them
+       changed
+    */
+    public StateChangeEvent restrict (CallContext context, String[] variables) {
+        int count = 0;
+        boolean[] selected = new boolean[this.variables.length];
+        for (int i=0; i<this.variables.length; i++) {
+            for (String variable : variables) {
+                if (variable.equals(this.variables[i])) {
+                    selected[i] = true;
+                    count++;
+                    break;
+                }
+            }
+        }
+        if (count == this.variables.length) { return this; }
+        if (count == 0) { return null; }
+        String[] v = new String[count], o = new String[count], n = new String[count];
+        for (int i=0, j=0; i<this.variables.length; i++) {
+            if (selected[i]) {
+                v[j] = this.variables[i];
+                o[j] = this.old_values[i];
+                n[j] = this.new_values[i];
+                j++;
+            }
+        }
+        return new StateChangeEvent(context, this.source, v, o, n, false);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[StateChange:");
+        for (int i=0; i<this.variables.length; i++) {
+            sb.append(' ').append(this.variables[i]).append('=').append(this.old_values[i]).append("->").append(this.new_values[i]);
+        }
+        if (this.sub_states_changed) { sb.append(" (sub states)"); }
+        return sb.append(']').toString();
+    }
+}
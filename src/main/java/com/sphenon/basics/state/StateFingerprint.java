@@ -0,0 +1,71 @@
+package com.sphenon.basics.state;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+/**
+   Hash functions for {@link State#getFingerprint}.
+
+   Values are hashed over their characters with 64 bit FNV-1a followed by
+   a final mix; String.hashCode would limit fingerprints to 32 bits.
+
+   The fingerprint of a value vector is the xor of the contributions of its
+   slots, so it can be updated incrementally when a single value changes.
+   Unset (null) values contribute 0.
+*/
+public class StateFingerprint {
+
+    static public long mix(long h) {
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= (h >>> 33);
+        return h;
+    }
+
+    /**
+       64 bit FNV-1a hash of the characters of the value
+    */
+    static public long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i=0; i<value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+       Contribution of a value in a given slot
+    */
+    static public long of(int slot, String value) {
+        return value == null ? 0L : mix(hash(value) ^ ((slot + 1) * 0x9E3779B97F4A7C15L));
+    }
+
+    /**
+       Contribution of a sub state fingerprint at a given position
+    */
+    static public long ofSubState(int position, long fingerprint) {
+        return mix(fingerprint + (position + 1) * 0xC2B2AE3D27D4EB4FL);
+    }
+
+    static public long of(String value) {
+        return value == null ? 0L : mix(hash(value) ^ 0x165667B19E3779F9L);
+    }
+
+    static public int hashCode(long fingerprint) {
+        return (int) (fingerprint ^ (fingerprint >>> 32));
+    }
+}
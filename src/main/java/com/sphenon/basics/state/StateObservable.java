@@ -0,0 +1,47 @@
+package com.sphenon.basics.state;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import java.util.concurrent.Executor;
+
+/**
+   State which notifies listeners about changes, so that observers need
+   not poll {@link State#getId}.
+*/
+public interface StateObservable {
+
+    /**
+       Registers the listener for changes of the given variables, or of all
+       variables and sub states if none are given; it is called
+       synchronously by the modifying thread.
+    */
+    public void addStateChangeListener(CallContext context, StateChangeListener listener, String... variables);
+
+    /**
+       Like {@link #addStateChangeListener(CallContext,StateChangeListener,String...)},
+       but events are delivered via the executor (e.g. one running virtual
+       threads); listeners then see the event, not necessarily the current
+       state.
+    */
+    public void addStateChangeListener(CallContext context, StateChangeListener listener, Executor executor, String... variables);
+
+    public void removeStateChangeListener(CallContext context, StateChangeListener listener);
+}
@@ -19,6 +19,9 @@ import com.sphenon.basics.context.classes.*;
 import com.sphenon.basics.message.*;
 import com.sphenon.basics.notification.*;
 import com.sphenon.basics.customary.*;
+import com.sphenon.basics.configuration.*;
+
+import com.sphenon.basics.state.classes.*;
 
 public class StatePackageInitialiser {
 
@@ -32,6 +35,11 @@ public class StatePackageInitialiser {
         
         if (initialised == false) {
             initialised = true;
+
+            Configuration config = Configuration.create(context, "com.sphenon.basics.state");
+            if (config.get(context, "Metrics", false)) {
+                StateMetrics.setEnabled(context, true);
+            }
         }
     }
 }
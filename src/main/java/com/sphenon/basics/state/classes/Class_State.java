@@ -44,6 +44,7 @@ public class Class_State implements State {
 
     public void setId (CallContext context, String id) {
         this.id = id;
+        this.fingerprint = 0L;
     }
 
     protected String description;
@@ -58,6 +59,31 @@ public class Class_State implements State {
 
     public void setDescription (CallContext context, String description) {
         this.description = description;
+        this.fingerprint = 0L;
+    }
+
+    protected long fingerprint;
+
+    /**
+       Like the default, cached until id or description change (0 means
+       not computed)
+    */
+    public long getFingerprint (CallContext context) {
+        long fingerprint = this.fingerprint;
+        if (fingerprint == 0L) {
+            fingerprint = State.super.getFingerprint(context);
+            this.fingerprint = fingerprint;
+        }
+        return fingerprint;
+    }
+
+    public int hashCode() {
+        return StateFingerprint.hashCode(this.getFingerprint(RootContext.getFallbackCallContext()));
+    }
+
+    public boolean equals(Object o) {
+        if (o == this) { return true; }
+        return (o instanceof State) && this.equals(RootContext.getFallbackCallContext(), (State) o);
     }
 
     public Class_State clone(CallContext context) {
@@ -69,6 +95,8 @@ public class Class_State implements State {
         if ((o instanceof Class_State) == false) { return false; }
         Class_State other = (Class_State) o;
 
+        if (this.getFingerprint(context) != other.getFingerprint(context)) { return false; }
+
         if ((this.getId(context) == null) != (other.getId(context) == null)) { return false; }
         if (this.getId(context) != null && this.getId(context).equals(other.getId(context)) == false) { return false; }
 
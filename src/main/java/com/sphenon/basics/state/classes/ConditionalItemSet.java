@@ -0,0 +1,214 @@
+package com.sphenon.basics.state.classes;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import com.sphenon.basics.state.*;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+
+/**
+   Set of ConditionalItems which selects the items whose condition matches
+   a given state without evaluating every condition.
+
+   Conditions are compiled for the specification of the set. For each
+   condition, a variable whose value is restricted in all matching states
+   (e.g. by an equality clause) is determined, and the item is entered in
+   an index from (variable, value) to items. Selecting then only evaluates
+   the items found via the index for the state's current values, plus the
+   items without such a restriction. Since the restrictions are necessary
+   conditions, the result equals full evaluation of all items.
+
+   Items with a null condition always apply. States of other
+   specifications are evaluated naively.
+
+   The index is built from the conditions the items have when it is first
+   needed. Conditions changed afterwards via
+   {@link ConditionalItem#setCondition} are not noticed; call
+   {@link #invalidate} after such changes.
+*/
+public class ConditionalItemSet<ItemType> {
+
+    public ConditionalItemSet (CallContext context, StateComplex.Specification specification) {
+        this.specification = specification;
+        this.items         = new ArrayList<ConditionalItem<ItemType>>();
+    }
+
+    protected StateComplex.Specification specification;
+
+    public StateComplex.Specification getSpecification (CallContext context) {
+        return this.specification;
+    }
+
+    protected List<ConditionalItem<ItemType>> items;
+
+    /**
+       Unmodifiable copy of the items, in the order they were added; use
+       {@link #add}, {@link #addAll} and {@link #clear} to change them
+    */
+    public synchronized List<ConditionalItem<ItemType>> getItems (CallContext context) {
+        return Collections.unmodifiableList(new ArrayList<ConditionalItem<ItemType>>(this.items));
+    }
+
+    public synchronized void add (CallContext context, ConditionalItem<ItemType> item) {
+        this.items.add(item);
+        this.index = null;
+    }
+
+    public synchronized void addAll (CallContext context, List<ConditionalItem<ItemType>> items) {
+        this.items.addAll(items);
+        this.index = null;
+    }
+
+    public synchronized void clear (CallContext context) {
+        this.items.clear();
+        this.index = null;
+    }
+
+    /**
+       Discards the index, so that it is rebuilt from the items' current
+       conditions on the next selection
+    */
+    public synchronized void invalidate (CallContext context) {
+        this.index = null;
+    }
+
+    static protected class Index<ItemType> {
+        protected ConditionalItem<ItemType>[]     items;
+        protected StateComplexConditionCompiled[] conditions;
+        protected BitSet                          unindexed;
+        protected int[]                           indexed_slots;
+        protected BitSet[][]                      by_value;
+        protected BitSet[]                        by_slot;
+    }
+
+    protected volatile Index<ItemType> index;
+
+    @SuppressWarnings("unchecked")
+    protected synchronized Index<ItemType> getIndex (CallContext context) {
+        if (this.index != null) { return this.index; }
+
+        Index<ItemType> index = new Index<ItemType>();
+        int size  = this.items.size();
+        int slots = this.specification.getSize(context);
+        index.items      = this.items.toArray(new ConditionalItem[size]);
+        index.conditions = new StateComplexConditionCompiled[size];
+        index.unindexed  = new BitSet(size);
+        index.by_value   = new BitSet[slots][];
+        index.by_slot    = new BitSet[slots];
+        StateComplexConditionCache cache = StateComplexConditionCache.get(context);
+
+        for (int i=0; i<size; i++) {
+            String condition = index.items[i].getCondition(context);
+            if (condition == null) {
+                index.unindexed.set(i);
+                continue;
+            }
+            StateComplexConditionCompiled compiled = cache.getCondition(context, condition).compile(context, this.specification);
+            index.conditions[i] = compiled;
+
+            BitSet[] required = compiled.getRequiredOrdinals(context);
+            if (required == null) { continue; } // never matches
+
+            int best = -1;
+            double selectivity = 1.0;
+            for (int s=0; s<slots; s++) {
+                if (required[s] == null) { continue; }
+                double sel = ((double) required[s].cardinality()) / (this.specification.getOrdinalCount(context, s) + 1);
+                if (sel < selectivity) {
+                    selectivity = sel;
+                    best = s;
+                }
+            }
+            if (best == -1) {
+                index.unindexed.set(i);
+                continue;
+            }
+            if (index.by_value[best] == null) {
+                index.by_value[best] = new BitSet[this.specification.getOrdinalCount(context, best) + 1];
+                index.by_slot[best]  = new BitSet(size);
+            }
+            index.by_slot[best].set(i);
+            for (int o = required[best].nextSetBit(0); o >= 0; o = required[best].nextSetBit(o+1)) {
+                if (index.by_value[best][o] == null) { index.by_value[best][o] = new BitSet(size); }
+                index.by_value[best][o].set(i);
+            }
+        }
+
+        int count = 0;
+        for (int s=0; s<slots; s++) { if (index.by_slot[s] != null) { count++; } }
+        index.indexed_slots = new int[count];
+        for (int s=0, j=0; s<slots; s++) { if (index.by_slot[s] != null) { index.indexed_slots[j++] = s; } }
+
+        this.index = index;
+        return index;
+    }
+
+    /**
+       Returns the items whose condition matches the state, in the order
+       they were added
+    */
+    public List<ConditionalItem<ItemType>> selectConditionalItems (CallContext context, State state) {
+        Index<ItemType> index = this.getIndex(context);
+        List<ConditionalItem<ItemType>> result = new ArrayList<ConditionalItem<ItemType>>();
+
+        if (    (state instanceof StateComplex) == false
+             || ((StateComplex) state).getSpecification(context) != this.specification) {
+            for (int i=0; i<index.items.length; i++) {
+                if (index.conditions[i] == null || index.conditions[i].matches(context, state)) {
+                    result.add(index.items[i]);
+                }
+            }
+            return result;
+        }
+
+        StateComplex sc = (StateComplex) state;
+        BitSet candidates = (BitSet) index.unindexed.clone();
+        for (int slot : index.indexed_slots) {
+            int ordinal = sc.getOrdinal(context, slot);
+            if (ordinal < 0) {
+                candidates.or(index.by_slot[slot]);
+            } else if (index.by_value[slot][ordinal] != null) {
+                candidates.or(index.by_value[slot][ordinal]);
+            }
+        }
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i+1)) {
+            if (index.conditions[i] == null || index.conditions[i].matches(context, state)) {
+                result.add(index.items[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+       Returns the items of all conditional items matching the state
+    */
+    public List<ItemType> select (CallContext context, State state) {
+        List<ConditionalItem<ItemType>> selected = this.selectConditionalItems(context, state);
+        List<ItemType> result = new ArrayList<ItemType>(selected.size());
+        for (ConditionalItem<ItemType> item : selected) {
+            result.add(item.getItem(context));
+        }
+        return result;
+    }
+}
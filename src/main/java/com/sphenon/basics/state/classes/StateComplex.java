@@ -27,15 +27,25 @@ import com.sphenon.basics.state.*;
 import com.sphenon.ui.core.*;
 import com.sphenon.ui.annotations.*;
 
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 @UIId         ("state")
 @UIName       ("State")
 @UIClassifier ("State")
-public class StateComplex implements State, TSMMapped, UIEquipped {
+public class StateComplex implements State, StateObservable, TSMMapped, UIEquipped {
 
     public StateComplex (CallContext context) {
     }
@@ -58,7 +68,7 @@ public class StateComplex implements State, TSMMapped, UIEquipped {
                         be contained in that lists, this is checked
      */
     public StateComplex (CallContext context, String[] variables, String[] values) {
-        this(context, computeValidValues(context, variables, values), values);
+        this(context, StateSpecificationRegistry.get(context).getSpecification(context, variables, values), values);
     }
 
     public StateComplex (CallContext context, Specification specification, String[] values) {
@@ -66,41 +76,378 @@ public class StateComplex implements State, TSMMapped, UIEquipped {
     }
 
     public StateComplex (CallContext context, Specification specification, String[] values, String[] sub_state_variables, State[] sub_states) {
+        this(context, specification, sub_state_variables, sub_states);
+        this.assignValues(context, values);
+    }
+
+    /**
+       Creates a state with allocated but unassigned storage; used by
+       subclasses which fill it themselves without revalidation.
+    */
+    protected StateComplex (CallContext context, Specification specification, String[] sub_state_variables, State[] sub_states) {
         this.specification = specification;
         this.variables     = specification.variables;
         this.valid_values  = specification.valid_values;
-        this.values        = new String[this.variables.length];
-        this.descriptions  = new String[this.variables.length];
+        this.allocate(context);
         this.sub_state_variables = sub_state_variables;
         this.sub_states          = sub_states;
+        this.attachSubStates(context);
+    }
+
+    /**
+       Creates a copy of the original sharing its values, see {@link #clone}
+    */
+    protected StateComplex (CallContext context, StateComplex original, State[] sub_states) {
+        this.specification       = original.specification;
+        this.variables           = original.variables;
+        this.valid_values        = original.valid_values;
+        this.values              = original.values;
+        this.descriptions        = original.descriptions;
+        this.values_fingerprint  = original.values_fingerprint;
+        this.shared              = true;
+        if (original.shared == false) { original.shared = true; }
+        this.sub_state_variables = original.sub_state_variables;
+        this.sub_states          = sub_states;
+        this.attachSubStates(context);
+    }
 
-        if (values != null || specification.initial_values != null) {
+    protected void assignValues (CallContext context, String[] values) {
+        String[] initial_values = this.specification.initial_values;
+        if (values != null || initial_values != null) {
             for (int i=0; i<this.variables.length; i++) {
                 if (    values != null
                      && values.length > i
                      && values[i] != null) {
                     this.setValue(context, this.variables[i], values[i], i);
-                } else if (    specification.initial_values != null
-                            && specification.initial_values.length > i
-                               && specification.initial_values[i] != null) {
-                    this.setValue(context, this.variables[i], specification.initial_values[i], i);
+                } else if (    initial_values != null
+                            && initial_values.length > i
+                            && initial_values[i] != null) {
+                    this.setValue(context, this.variables[i], initial_values[i], i);
                 }
             }
         }
     }
 
+    /**
+       Parsed variable definitions; immutable, since specifications are
+       shared by all states created from the same definitions (see
+       {@link StateSpecificationRegistry}). Accessors returning arrays
+       return copies.
+    */
     static public class Specification {
-        public String[][][] valid_values;
-        public String[]     initial_values;
-        public String[]     variables;
+
+        protected Specification (String[] variables, String[][][] valid_values, String[] initial_values) {
+            this.variables      = variables;
+            this.valid_values   = valid_values;
+            this.initial_values = initial_values;
+        }
+
+        private final String[][][] valid_values;
+        private final String[]     initial_values;
+        private final String[]     variables;
+
+        /**
+           Number of variables
+        */
+        public int getSize(CallContext context) {
+            return this.variables.length;
+        }
+
+        public String getVariable(CallContext context, int slot) {
+            return this.variables[slot];
+        }
+
+        public String[] getVariables(CallContext context) {
+            return this.variables.clone();
+        }
+
+        /**
+           Valid values and descriptions per variable, or null if no
+           variable declares values
+        */
+        public String[][][] getValidValues(CallContext context) {
+            return copy(this.valid_values);
+        }
+
+        /**
+           Initial value of the variable in the given slot, or null
+        */
+        public String getInitialValue(CallContext context, int slot) {
+            return (this.initial_values == null || this.initial_values.length <= slot) ? null : this.initial_values[slot];
+        }
+
+        protected NameIndex slot_index;
+
+        protected NameIndex getSlotIndex(CallContext context) {
+            NameIndex index = this.slot_index;
+            if (index == null || index.source != this.variables) {
+                index = new NameIndex(this.variables);
+                this.slot_index = index;
+            }
+            return index;
+        }
+
+        /**
+           Slot of the variable with the given name, or -1 if there is no such
+           variable.
+        */
+        public int slotOf(CallContext context, String variable) {
+            return this.getSlotIndex(context).get(variable, 0, variable.length());
+        }
+
+        /**
+           Slot of the variable named by the given region of a string, or -1
+           if there is no such variable.
+        */
+        public int slotOf(CallContext context, String name, int from, int to) {
+            return this.getSlotIndex(context).get(name, from, to);
+        }
+
+        static protected final int MAXIMUM_PATTERNS = 256;
+
+        protected volatile ConcurrentHashMap<String,int[]> pattern_slots;
+
+        /**
+           Slots of the variables whose names match the regular expression,
+           all slots if it is null. Results are cached per pattern, so the
+           expression is compiled and applied only on the first query.
+        */
+        public int[] getSlots(CallContext context, String pattern) {
+            if (pattern == null) { pattern = ".*"; }
+            ConcurrentHashMap<String,int[]> cache = this.pattern_slots;
+            if (cache == null) {
+                synchronized (this) {
+                    cache = this.pattern_slots;
+                    if (cache == null) {
+                        cache = new ConcurrentHashMap<String,int[]>();
+                        this.pattern_slots = cache;
+                    }
+                }
+            }
+            int[] slots = cache.get(pattern);
+            if (slots == null) {
+                int size = (this.variables == null ? 0 : this.variables.length);
+                int[] matching = new int[size];
+                int count = 0;
+                Matcher matcher = Pattern.compile(pattern).matcher("");
+                for (int i=0; i<size; i++) {
+                    if (matcher.reset(this.variables[i]).matches()) { matching[count++] = i; }
+                }
+                slots = Arrays.copyOf(matching, count);
+                if (cache.size() < MAXIMUM_PATTERNS) { cache.putIfAbsent(pattern, slots); }
+            }
+            return slots;
+        }
+
+        /**
+           Number of declared valid values of the variable in the given slot,
+           or -1 if no values are declared for it.
+        */
+        public int getOrdinalCount(CallContext context, int slot) {
+            return (this.valid_values == null || this.valid_values[slot] == null) ? -1 : this.valid_values[slot].length;
+        }
+
+        /**
+           Ordinal of a value of the variable in the given slot: 0 for null,
+           j+1 for the j-th declared valid value, and -1 if the value is not
+           declared or no values are declared for that variable.
+           Values stored by StateComplex are the declared instances, so the
+           identity comparison usually succeeds.
+        */
+        public int getOrdinal(CallContext context, int slot, String value) {
+            if (value == null) { return 0; }
+            if (this.valid_values == null) { return -1; }
+            String[][] vvs = this.valid_values[slot];
+            if (vvs == null) { return -1; }
+            for (int j=0; j<vvs.length; j++) {
+                if (vvs[j][0] == value) { return j+1; }
+            }
+            for (int j=0; j<vvs.length; j++) {
+                if (vvs[j][0].equals(value)) { return j+1; }
+            }
+            return -1;
+        }
+
+        /**
+           Inverse of {@link #getOrdinal}, returns the declared value instance.
+        */
+        public String getValue(CallContext context, int slot, int ordinal) {
+            return ordinal == 0 ? null : this.valid_values[slot][ordinal-1][0];
+        }
+
+        protected volatile String[][] value_descriptions;
+
+        /**
+           Description of a declared value, i.e. the declared description or
+           "variable=value"; the instances are shared by all states.
+        */
+        public String getValueDescription(CallContext context, int slot, int ordinal) {
+            if (ordinal == 0) { return null; }
+            String[][] vds = this.value_descriptions;
+            if (vds == null) {
+                vds = new String[this.variables.length][];
+                for (int i=0; i<vds.length; i++) {
+                    String[][] vvs = this.valid_values[i];
+                    if (vvs == null) { continue; }
+                    vds[i] = new String[vvs.length];
+                    for (int j=0; j<vvs.length; j++) {
+                        vds[i][j] = (vvs[j][1] != null ? vvs[j][1] : (this.variables[i] + "=" + vvs[j][0]));
+                    }
+                }
+                this.value_descriptions = vds;
+            }
+            return vds[slot][ordinal-1];
+        }
+
+        protected volatile int[] bit_offsets;
+        protected volatile int[] bit_widths; // written last, non null once computed
+
+        protected volatile StateComplexPool snapshot_pool;
+
+        protected volatile long fingerprint;
+
+        /**
+           Hash of the variable names and their declared values; encodings
+           of states carry it to detect specification mismatches.
+        */
+        public long getFingerprint(CallContext context) {
+            if (this.fingerprint == 0L) {
+                long fingerprint = 0x9E3779B97F4A7C15L;
+                int size = this.variables == null ? 0 : this.variables.length;
+                for (int i=0; i<size; i++) {
+                    fingerprint = StateFingerprint.mix(fingerprint ^ StateFingerprint.of(this.variables[i]));
+                    int count = this.getOrdinalCount(context, i);
+                    fingerprint = StateFingerprint.mix(fingerprint + count);
+                    for (int j=0; j<count; j++) {
+                        fingerprint = StateFingerprint.mix(fingerprint ^ StateFingerprint.of(this.valid_values[i][j][0]));
+                    }
+                }
+                this.fingerprint = (fingerprint == 0L ? 1L : fingerprint);
+            }
+            return this.fingerprint;
+        }
+
+        /**
+           True if all variables have declared values and their ordinals fit
+           into 128 bits, see {@link StateComplexPacked}.
+        */
+        public boolean isPackable(CallContext context) {
+            return this.getBitOffsets(context) != null;
+        }
+
+        /**
+           Offsets of the ordinals of each slot in a 128 bit field; no slot
+           spans the boundary of the two 64 bit words. Null if the
+           specification is not packable.
+        */
+        public int[] getBitOffsets(CallContext context) {
+            if (this.bit_widths == null) {
+                int size = this.variables == null ? 0 : this.variables.length;
+                int[] offsets = new int[size];
+                int[] widths  = new int[size];
+                int offset = 0;
+                for (int i=0; i<size && offsets != null; i++) {
+                    int count = this.getOrdinalCount(context, i);
+                    if (count < 0) {
+                        offsets = null;
+                    } else {
+                        widths[i] = 32 - Integer.numberOfLeadingZeros(count);
+                        if (offset < 64 && offset + widths[i] > 64) { offset = 64; }
+                        offsets[i] = offset;
+                        offset += widths[i];
+                        if (offset > 128) { offsets = null; }
+                    }
+                }
+                this.bit_offsets = offsets;
+                this.bit_widths  = widths;
+            }
+            return this.bit_offsets;
+        }
+
+        /**
+           Number of bits occupied by the ordinals of each slot, see
+           {@link #getBitOffsets}.
+        */
+        public int[] getBitWidths(CallContext context) {
+            this.getBitOffsets(context);
+            return this.bit_widths;
+        }
+    }
+
+    /**
+       Immutable open addressing hash table from names to their position in
+       the array the table was built from. Lookups may address a region of a
+       string, so dotted names can be resolved without creating substrings.
+       If a name occurs more than once, the first position is found.
+    */
+    static public class NameIndex {
+        protected final String[] source;
+        protected final String[] names;
+        protected final int[]    slots;
+        protected final int      mask;
+
+        public NameIndex(String[] source) {
+            this.source = source;
+            int size = source == null ? 0 : source.length;
+            int capacity = 4;
+            while (capacity < size * 2) { capacity <<= 1; }
+            this.names = new String[capacity];
+            this.slots = new int[capacity];
+            this.mask  = capacity - 1;
+            for (int i=0; i<size; i++) {
+                String name = source[i];
+                if (name == null) { continue; }
+                int p = mix(name.hashCode()) & this.mask;
+                while (this.names[p] != null && this.names[p].equals(name) == false) {
+                    p = (p + 1) & this.mask;
+                }
+                if (this.names[p] == null) {
+                    this.names[p] = name;
+                    this.slots[p] = i;
+                }
+            }
+        }
+
+        static protected int mix(int h) {
+            h *= 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        public int get(String name, int from, int to) {
+            int h;
+            if (from == 0 && to == name.length()) {
+                h = name.hashCode();
+            } else {
+                h = 0;
+                for (int i=from; i<to; i++) { h = 31 * h + name.charAt(i); }
+            }
+            int length = to - from;
+            int p = mix(h) & this.mask;
+            String candidate;
+            while ((candidate = this.names[p]) != null) {
+                if (    candidate == name
+                     || (    candidate.length() == length
+                          && candidate.regionMatches(0, name, from, length))) {
+                    return this.slots[p];
+                }
+                p = (p + 1) & this.mask;
+            }
+            return -1;
+        }
     }
 
     static public Specification computeValidValues(CallContext context, String[] variables) {
         return computeValidValues(context, variables, null);
     }
 
+    /**
+       Parses the variable definitions into a new specification; the
+       arguments are not modified. Constructors use the shared
+       specifications of the {@link StateSpecificationRegistry} instead.
+    */
     static public Specification computeValidValues(CallContext context, String[] variables, String[] values_for_reference) {
-        Specification s = new Specification();
+        String[][][] valid_values   = null;
+        String[]     initial_values = null;
         if (variables == null) {
             variables = new String[values_for_reference == null ? 0 : values_for_reference.length];
             if (values_for_reference != null) {
@@ -108,34 +455,47 @@ public class StateComplex implements State, TSMMapped, UIEquipped {
                     variables[i] = Integer.toString(i);
                 }
             }
-            s.variables = variables;
         } else {
-            s.variables = variables;
-            for (int i=0; i<s.variables.length; i++) {
-                String[] v = s.variables[i].split(":");
+            variables = variables.clone();
+            for (int i=0; i<variables.length; i++) {
+                String[] v = variables[i].split(":");
                 if (v.length > 1) {
-                    if (s.valid_values == null) {
-                        s.valid_values = new String[s.variables.length][][];
+                    if (valid_values == null) {
+                        valid_values = new String[variables.length][][];
                     }
                     String[] vvs = v[1].split(",");
-                    s.variables[i] = v[0];
-                    s.valid_values[i] = new String[vvs.length][];
+                    variables[i] = v[0];
+                    valid_values[i] = new String[vvs.length][];
                     for (int j=0; j<vvs.length; j++) {
-                        s.valid_values[i][j] = new String[2];
+                        valid_values[i][j] = new String[2];
                         String[] vv = vvs[j].split("/");
-                        s.valid_values[i][j][0] = vv[0];
-                        s.valid_values[i][j][1] = vv.length > 1 ? vv[1] : null;
+                        valid_values[i][j][0] = vv[0];
+                        valid_values[i][j][1] = vv.length > 1 ? vv[1] : null;
                     }
                 }
                 if (v.length > 2) {
-                    if (s.initial_values == null) {
-                        s.initial_values = new String[s.variables.length];
+                    if (initial_values == null) {
+                        initial_values = new String[variables.length];
                     }
-                    s.initial_values[i] = v[2];
+                    initial_values[i] = v[2];
                 }
             }
         }
-        return s;
+        return new Specification(variables, valid_values, initial_values);
+    }
+
+    static protected String[][][] copy(String[][][] valid_values) {
+        if (valid_values == null) { return null; }
+        String[][][] result = new String[valid_values.length][][];
+        for (int i=0; i<valid_values.length; i++) {
+            if (valid_values[i] != null) {
+                result[i] = new String[valid_values[i].length][];
+                for (int j=0; j<valid_values[i].length; j++) {
+                    result[i][j] = valid_values[i][j].clone();
+                }
+            }
+        }
+        return result;
     }
 
     public StateComplex (CallContext context, String... variables) {
@@ -143,9 +503,12 @@ public class StateComplex implements State, TSMMapped, UIEquipped {
     }
 
     public StateComplex setSubStates(CallContext context, Object... arguments) {
+        this.detachSubStates(context);
         if (arguments == null) {
             this.sub_state_variables = null;
             this.sub_states          = null;
+            this.changed(context);
+            if (this.listeners != null) { this.subStatesChanged(context); }
             return this;
         }
 
@@ -156,10 +519,156 @@ public class StateComplex implements State, TSMMapped, UIEquipped {
             this.sub_state_variables[i] = (String) arguments[j];
             this.sub_states[i]          = (State)  arguments[j+1];
         }
+        this.attachSubStates(context);
+        this.changed(context);
+        if (this.listeners != null) { this.subStatesChanged(context); }
 
         return this;
     }
 
+    /**
+       Complex states containing this one as a sub state, notified via
+       {@link #changed} if this state changes. Referenced weakly, so that a
+       shared sub state does not keep discarded parents reachable. Unused
+       elements are null; cleared and removed references are dropped when
+       the array is full, before it grows.
+    */
+    protected volatile WeakReference<StateComplex>[] parents;
+    protected int parent_count;
+
+    protected void attachSubStates(CallContext context) {
+        if (this.sub_states == null) { return; }
+        for (State sub_state : this.sub_states) {
+            if (sub_state instanceof StateComplex) {
+                ((StateComplex) sub_state).addParent(context, this);
+            }
+        }
+    }
+
+    protected void detachSubStates(CallContext context) {
+        if (this.sub_states == null) { return; }
+        for (State sub_state : this.sub_states) {
+            if (sub_state instanceof StateComplex) {
+                ((StateComplex) sub_state).removeParent(context, this);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected synchronized void addParent(CallContext context, StateComplex parent) {
+        WeakReference<StateComplex>[] parents = this.parents;
+        if (parents == null) {
+            parents = (WeakReference<StateComplex>[]) new WeakReference[2];
+            this.parents = parents;
+        } else if (this.parent_count == parents.length) {
+            // copy instead of compacting in place, for concurrent readers
+            int live = 0;
+            for (WeakReference<StateComplex> reference : parents) {
+                if (reference != null && reference.get() != null) { live++; }
+            }
+            WeakReference<StateComplex>[] new_parents = (WeakReference<StateComplex>[]) new WeakReference[Math.max(2, live * 2)];
+            live = 0;
+            for (WeakReference<StateComplex> reference : parents) {
+                if (reference != null && reference.get() != null) { new_parents[live++] = reference; }
+            }
+            this.parent_count = live;
+            this.parents = parents = new_parents;
+        }
+        parents[this.parent_count++] = new WeakReference<StateComplex>(parent);
+    }
+
+    protected synchronized void removeParent(CallContext context, StateComplex parent) {
+        WeakReference<StateComplex>[] parents = this.parents;
+        if (parents == null) { return; }
+        for (int i=0; i<this.parent_count; i++) {
+            if (parents[i] != null && parents[i].get() == parent) {
+                parents[i] = null;
+                return;
+            }
+        }
+    }
+
+    protected String  cached_id;
+    protected String  cached_description;
+    protected byte    cacheable; // 0: unknown, 1: yes, 2: no
+    protected long    invalidation;
+
+    static protected final AtomicLong invalidations = new AtomicLong();
+
+    /**
+       Recomputes the fingerprint and drops cached id and description of
+       this state and all states containing it. Code modifying the arrays
+       returned by the getters directly has to call it.
+    */
+    public void invalidate(CallContext context) {
+        long fingerprint = 0L;
+        for (int i=0; this.variables != null && i<this.variables.length; i++) {
+            fingerprint ^= StateFingerprint.of(i, this.getValue(context, i));
+        }
+        this.values_fingerprint = fingerprint;
+        this.changed(context);
+    }
+
+    /**
+       Drops cached id and description of this state and all states
+       containing it; called on every modification through this class.
+    */
+    protected void changed(CallContext context) {
+        this.cached_id          = null;
+        this.cached_description = null;
+        this.cacheable          = 0;
+        if (this.parents != null) { this.changedParents(context, invalidations.incrementAndGet()); }
+    }
+
+    /**
+       Invalidates the states containing this one; each state is visited
+       once per invalidation, also if it is reachable on several paths
+    */
+    protected void changedParents(CallContext context, long invalidation) {
+        WeakReference<StateComplex>[] parents = this.parents;
+        if (parents == null) { return; }
+        for (WeakReference<StateComplex> reference : parents) {
+            StateComplex parent = (reference == null ? null : reference.get());
+            if (parent != null && parent.invalidation != invalidation) {
+                parent.invalidation       = invalidation;
+                parent.cached_id          = null;
+                parent.cached_description = null;
+                parent.cacheable          = 0;
+                parent.changedParents(context, invalidation);
+            }
+        }
+    }
+
+    /**
+       True if {@link #getId} and {@link #getDescription} keep their
+       results (as far as {@link #isCacheable}); compact representations
+       opt out to keep their heap per instance small
+    */
+    protected boolean cachesIds(CallContext context) {
+        return true;
+    }
+
+    /**
+       Id and description are cached only if all sub states are complex
+       states themselves, since other states cannot report changes.
+    */
+    protected boolean isCacheable(CallContext context) {
+        if (this.cacheable == 0) {
+            boolean result = true;
+            if (this.sub_states != null) {
+                for (State sub_state : this.sub_states) {
+                    if (    (sub_state instanceof StateComplex) == false
+                         || ((StateComplex) sub_state).isCacheable(context) == false) {
+                        result = false;
+                        break;
+                    }
+                }
+            }
+            this.cacheable = (byte) (result ? 1 : 2);
+        }
+        return this.cacheable == 1;
+    }
+
     /**
        Creates new State with variable definitions and current values from a single string
 
@@ -177,10 +686,9 @@ public class StateComplex implements State, TSMMapped, UIEquipped {
        @return new complex state instance
      */
     static public StateComplex create(CallContext context, String all_in_one) {
-        String[] varval = all_in_one.split("#");
-        return new StateComplex(context,
-                                varval[0].isEmpty() ? null : varval[0].split(";"),
-                                varval.length <= 1 || varval[1].isEmpty() ? null : varval[1].split(";"));
+        int hash = all_in_one.indexOf('#');
+        String[] values = (hash == -1 || hash == all_in_one.length() - 1) ? null : all_in_one.substring(hash + 1).split(";");
+        return new StateComplex(context, StateSpecificationRegistry.get(context).getSpecification(context, hash == -1 ? all_in_one : all_in_one.substring(0, hash), values), values);
     }
 
     protected Specification specification;
@@ -191,38 +699,135 @@ public class StateComplex implements State, TSMMapped, UIEquipped {
 
     protected String[] variables;
 
+    /**
+       Names of the variables; a copy, the specification is shared
+    */
     public String[] getVariables (CallContext context) {
-        return this.variables;
+        return this.variables == null ? null : this.variables.clone();
     }
 
     protected String[][][] valid_values;
 
+    /**
+       Valid values of the variables; a copy, the specification is shared
+    */
     public String[][][] getValidValues (CallContext context) {
-        return this.valid_values;
+        return copy(this.valid_values);
     }
 
     protected String[] values;
 
+    /**
+       Creates the storage for the values, called during construction.
+    */
+    protected void allocate (CallContext context) {
+        this.values        = new String[this.variables.length];
+        this.descriptions  = new String[this.variables.length];
+    }
+
     public String[] getValues (CallContext context) {
+        if (this.shared) { this.unshare(context); }
         return this.values;
     }
 
+    /**
+       True while values and descriptions arrays are shared with a clone
+    */
+    protected boolean shared;
+
+    /**
+       Takes private copies of shared value arrays, before they are modified
+       or handed out
+    */
+    protected void unshare (CallContext context) {
+        this.values       = this.values.clone();
+        this.descriptions = this.descriptions.clone();
+        this.shared       = false;
+    }
+
+    /**
+       Name and value of the variables matching the pattern, see
+       {@link Specification#getSlots}; the result is an unmodifiable list,
+       each element is created on first access and holds the value at that
+       time. {@link ValueList#getName} and {@link ValueList#getValue} read
+       without creating elements.
+    */
     public List<String[]> getValues (CallContext context, String pattern) {
-        String[] all_names  = getVariables(context);
-        String[] all_values = getValues(context);
-        List<String[]> matching = new ArrayList<String[]>();
-        int size = (all_names == null ? 0 : all_names.length);
-        for (int i=0; i<size; i++) {
-            if (pattern == null || all_names[i].matches(pattern)) {
-                matching.add(new String[] { all_names[i], all_values[i] });
+        if (this.specification == null) {
+            return new ValueList(context, this, new int[0], null);
+        }
+        return new ValueList(context, this, this.specification.getSlots(context, pattern), null);
+    }
+
+    /**
+       Like {@link #getValues(CallContext,String)}, for the variables of the
+       complex sub state reached by interpreting all segments of the path as
+       sub state names; returned names are prefixed with the path. The result
+       is empty if there is no such sub state.
+    */
+    public List<String[]> getValues (CallContext context, StatePath path, String pattern) {
+        State state = path.getState(context, this);
+        if ((state instanceof StateComplex) == false) {
+            return new ValueList(context, this, new int[0], null);
+        }
+        StateComplex sub_state = (StateComplex) state;
+        if (sub_state.specification == null) {
+            return new ValueList(context, this, new int[0], null);
+        }
+        return new ValueList(context, sub_state, sub_state.specification.getSlots(context, pattern), path.getPath(context) + ".");
+    }
+
+    static public class ValueList extends AbstractList<String[]> implements RandomAccess {
+        protected ValueList (CallContext context, StateComplex state, int[] slots, String prefix) {
+            this.context = context;
+            this.state   = state;
+            this.slots   = slots;
+            this.prefix  = prefix;
+        }
+        protected final CallContext  context;
+        protected final StateComplex state;
+        protected final int[]        slots;
+        protected final String       prefix;
+        protected String[][]         elements;
+
+        public int size() {
+            return this.slots.length;
+        }
+
+        public String[] get(int index) {
+            if (this.elements == null) { this.elements = new String[this.slots.length][]; }
+            String[] element = this.elements[index];
+            if (element == null) {
+                element = new String[] { this.getName(index), this.getValue(index) };
+                this.elements[index] = element;
             }
+            return element;
+        }
+
+        public int getSlot(int index) {
+            return this.slots[index];
+        }
+
+        /**
+           Name of the variable, prefixed with the path if any
+        */
+        public String getName(int index) {
+            String variable = this.state.variables[this.slots[index]];
+            return this.prefix == null ? variable : this.prefix + variable;
+        }
+
+        /**
+           Current value of the variable
+        */
+        public String getValue(int index) {
+            return this.state.getValue(this.context, this.slots[index]);
         }
-        return matching;
     }
 
     protected String[] descriptions;
 
     public String[] getDescriptions (CallContext context) {
+        if (this.shared) { this.unshare(context); }
         return this.descriptions;
     }
 
@@ -238,25 +843,62 @@ public class StateComplex implements State, TSMMapped, UIEquipped {
         return this.sub_states;
     }
 
+    protected NameIndex sub_state_index;
+
+    protected NameIndex getSubStateIndex (CallContext context) {
+        NameIndex index = this.sub_state_index;
+        if (index == null || index.source != this.sub_state_variables) {
+            index = new NameIndex(this.sub_state_variables);
+            this.sub_state_index = index;
+        }
+        return index;
+    }
+
+    /**
+       Slot of the variable with the given name, or -1 if there is no such
+       variable; the slot can be used with {@link #getValue(CallContext,int)}
+       and {@link #setValue(CallContext,int,String)}.
+    */
+    public int slotOf (CallContext context, String variable) {
+        return this.specification.slotOf(context, variable);
+    }
+
+    public String getValue (CallContext context, int slot) {
+        return this.values[slot];
+    }
+
+    public String getDescription (CallContext context, int slot) {
+        return this.descriptions[slot];
+    }
+
+    public void setValue (CallContext context, int slot, String value) {
+        this.setValue(context, this.variables[slot], value, slot);
+    }
+
     protected String doGetValue (CallContext context, String variable, boolean throw_exception) {
-        int dot = variable.indexOf('.');
+        return this.doGetValue (context, variable, 0, throw_exception);
+    }
+
+    /**
+       Looks up the variable named by variable.substring(offset); dotted
+       names are resolved in sub states without creating substrings.
+    */
+    protected String doGetValue (CallContext context, String variable, int offset, boolean throw_exception) {
+        int dot = variable.indexOf('.', offset);
         if (dot == -1 && this.variables != null) {
-            for (int i=0; i<this.variables.length; i++) {
-                if (this.variables[i].equals(variable)) {
-                    return this.values[i];
-                }
+            int slot = this.specification.slotOf(context, variable, offset, variable.length());
+            if (slot != -1) {
+                return this.getValue(context, slot);
             }
         }
         if (dot != -1 && this.sub_state_variables != null) {
-            String ssv = variable.substring(0, dot);
-            for (int i=0; i<this.sub_state_variables.length; i++) {
-                if (this.sub_state_variables[i].equals(ssv)) {
-                    String v = variable.substring(dot+1);
-                    State substate = this.sub_states[i];
-                    return (  substate instanceof StateComplex ? ((StateComplex) substate).tryGetValue(context, v)
-                            : "main".equals(v)                 ? substate.getId(context)
-                            :                                    null);
-                }
+            int i = this.getSubStateIndex(context).get(variable, offset, dot);
+            if (i != -1) {
+                State substate = this.sub_states[i];
+                return (  substate instanceof StateComplex ? ((StateComplex) substate).doGetValue(context, variable, dot+1, false)
+                        : (    variable.length() == dot + 5
+                            && variable.startsWith("main", dot+1)) ? substate.getId(context)
+                        :                                            null);
             }
         }
         if (throw_exception) {
@@ -267,6 +909,35 @@ public class StateComplex implements State, TSMMapped, UIEquipped {
         }
     }
 
+    /**
+       Ordinal of the current value in the given slot, see
+       {@link Specification#getOrdinal}.
+    */
+    public int getOrdinal (CallContext context, int slot) {
+        return this.specification.getOrdinal(context, slot, this.values[slot]);
+    }
+
+    /**
+       Sets the value in the given slot by its ordinal; validation is a
+       bounds check against the declared values.
+    */
+    public void setOrdinal (CallContext context, int slot, int ordinal) {
+        int count = this.specification.getOrdinalCount(context, slot);
+        if (ordinal < 0 || ordinal > count) {
+            if (StateMetrics.isEnabled(context)) { StateMetrics.recordValidationFailure(context); }
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot set variable '%(variable)' to ordinal '%(ordinal)' in complex state '%(id)' (invalid value)", "variable", this.variables[slot], "ordinal", ordinal, "id", this.getId(context));
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        String value     = this.specification.getValue(context, slot, ordinal);
+        String old_value = this.getValue(context, slot);
+        if (this.journal != null) { this.journal.append(context, this.journal_entity, slot, this.getOrdinal(context, slot), ordinal); }
+        this.values_fingerprint ^= StateFingerprint.of(slot, old_value) ^ StateFingerprint.of(slot, value);
+        this.store(context, slot, value, this.specification.getValueDescription(context, slot, ordinal), ordinal);
+        this.changed(context);
+        if (StateMetrics.isEnabled(context)) { StateMetrics.recordSetValue(context); }
+        if (this.listeners != null) { this.valueChanged(context, slot, old_value, value); }
+    }
+
     public String tryGetValue (CallContext context, String variable) {
         return doGetValue (context, variable, false);
     }
@@ -277,11 +948,10 @@ public class StateComplex implements State, TSMMapped, UIEquipped {
 
     public void setValue (CallContext context, String variable, String value) {
         if (this.variables != null) {
-            for (int i=0; i<this.variables.length; i++) {
-                if (this.variables[i].equals(variable)) {
-                    this.setValue (context, variable, value, i);
-                    return;
-                }
+            int slot = this.specification.slotOf(context, variable);
+            if (slot != -1) {
+                this.setValue (context, variable, value, slot);
+                return;
             }
         }
         CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot set variable '%(variable)' to '%(value)' in complex state '%(id)' (no such variable)", "variable", variable, "value", value, "id", this.getId(context));
@@ -290,39 +960,62 @@ public class StateComplex implements State, TSMMapped, UIEquipped {
 
     protected void setValue (CallContext context, String variable, String value, int i) {
         String description = null;
+        int ordinal = -1;
         if (this.valid_values != null) {
-            String[][] vvs = this.valid_values[i];
-            for (int j=0; description == null && j<vvs.length; j++) {
-                if (this.valid_values[i][j][0].equals(value)) {
-                    description = (this.valid_values[i][j][1] != null ? this.valid_values[i][j][1] : (variable + "=" + value));
-                }
-            }
-            if (description == null) {
+            ordinal = (value == null ? -1 : this.specification.getOrdinal(context, i, value));
+            if (ordinal <= 0) {
+                if (StateMetrics.isEnabled(context)) { StateMetrics.recordValidationFailure(context); }
                 CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot set variable '%(variable)' to '%(value)' in complex state '%(id)' (invalid value)", "variable", variable, "value", value, "id", this.getId(context));
                 throw (ExceptionPreConditionViolation) null; // compiler insists
             }
+            value       = this.specification.getValue(context, i, ordinal);
+            description = this.specification.getValueDescription(context, i, ordinal);
         }
-        this.values[i]       = value;
-        this.descriptions[i] = description;
+        String old_value = this.getValue(context, i);
+        if (this.journal != null) { this.journal.append(context, this.journal_entity, i, this.getOrdinal(context, i), ordinal); }
+        this.values_fingerprint ^= StateFingerprint.of(i, old_value) ^ StateFingerprint.of(i, value);
+        this.store(context, i, value, description, ordinal);
+        this.changed(context);
+        if (StateMetrics.isEnabled(context)) { StateMetrics.recordSetValue(context); }
+        if (this.listeners != null) { this.valueChanged(context, i, old_value, value); }
+    }
+
+    /**
+       Stores a validated value; ordinal is -1 if the variable has no
+       declared values.
+    */
+    protected void store (CallContext context, int slot, String value, String description, int ordinal) {
+        if (this.shared) { this.unshare(context); }
+        this.values[slot]       = value;
+        this.descriptions[slot] = description;
     }
 
     public String getId (CallContext context) {
-        StringBuffer sb = new StringBuffer();
+        String id = this.cached_id;
+        if (id == null) {
+            id = this.computeId(context);
+            if (this.cachesIds(context) && this.isCacheable(context)) { this.cached_id = id; }
+        }
+        return id;
+    }
+
+    protected String computeId (CallContext context) {
+        StringBuilder sb = new StringBuilder();
         boolean first = true;
         if (this.variables != null) {
             for (int i=0; i<this.variables.length; i++) {
                 if (first == false) { sb.append(","); }
                 first = false;
-                sb.append(this.variables[i] + "=" + this.values[i]);
+                sb.append(this.variables[i]).append('=').append(this.getValue(context, i));
             }
         }
         if (this.sub_state_variables != null) {
             for (int i=0; i<this.sub_state_variables.length; i++) {
                 if (first == false) { sb.append(","); }
                 first = false;
-                sb.append(this.sub_state_variables[i] + "[");
+                sb.append(this.sub_state_variables[i]).append('[');
                 sb.append(this.sub_states[i].getId(context));
-                sb.append("]");
+                sb.append(']');
             }
         }
         return sb.toString();
@@ -333,28 +1026,86 @@ public class StateComplex implements State, TSMMapped, UIEquipped {
     }
 
     public String getDescription (CallContext context) {
-        StringBuffer sb = new StringBuffer();
+        String description = this.cached_description;
+        if (description == null) {
+            description = this.computeDescription(context);
+            if (this.cachesIds(context) && this.isCacheable(context)) { this.cached_description = description; }
+        }
+        return description;
+    }
+
+    protected String computeDescription (CallContext context) {
+        StringBuilder sb = new StringBuilder();
         boolean first = true;
         if (this.variables != null) {
             for (int i=0; i<this.variables.length; i++) {
                 if (first == false) { sb.append(","); }
                 first = false;
-                sb.append(this.descriptions[i]);
+                sb.append(this.getDescription(context, i));
             }
         }
         if (this.sub_state_variables != null) {
             for (int i=0; i<this.sub_state_variables.length; i++) {
                 if (first == false) { sb.append(","); }
                 first = false;
-                sb.append(this.sub_state_variables[i] + "[");
+                sb.append(this.sub_state_variables[i]).append('[');
                 sb.append(this.sub_states[i].getDescription(context));
-                sb.append("]");
+                sb.append(']');
             }
         }
         return sb.toString();
     }
 
+    /**
+       Xor of {@link StateFingerprint#of(int,String)} over all slots,
+       maintained by the setters
+    */
+    protected long values_fingerprint;
+
+    public long getFingerprint (CallContext context) {
+        long fingerprint = this.values_fingerprint;
+        if (this.sub_states != null) {
+            for (int i=0; i<this.sub_states.length; i++) {
+                if (this.sub_states[i] != null) {
+                    fingerprint ^= StateFingerprint.ofSubState(i, this.sub_states[i].getFingerprint(context));
+                }
+            }
+        }
+        return fingerprint;
+    }
+
+    /**
+       Consistent with {@link #equals(CallContext,State)}; note that states
+       are mutable, so they must not be modified while used as keys.
+    */
+    public int hashCode() {
+        return StateFingerprint.hashCode(this.getFingerprint(RootContext.getFallbackCallContext()));
+    }
+
+    public boolean equals(Object o) {
+        if (o == this) { return true; }
+        return (o instanceof State) && this.equals(RootContext.getFallbackCallContext(), (State) o);
+    }
+
+    /**
+       Returns the canonical immutable snapshot of the current values, see
+       {@link StateComplexPool}
+    */
+    public StateComplex snapshot(CallContext context) {
+        return StateComplexPool.get(context, this.specification).intern(context, this);
+    }
+
+    /**
+       Copy on write clone: values are shared with this state until one of
+       both is modified and are not revalidated. Sub states are mutable and
+       may be referenced elsewhere, so each one is cloned as well, which is
+       constant time for complex sub states.
+    */
     public StateComplex clone(CallContext context) {
+        return new StateComplex(context, this, this.cloneSubStates(context));
+    }
+
+    protected State[] cloneSubStates(CallContext context) {
         State[] sub_states = this.getSubStates(context);
         State[] cloned_sub_states = null;
         if (sub_states != null) {
@@ -363,7 +1114,7 @@ public class StateComplex implements State, TSMMapped, UIEquipped {
                 cloned_sub_states[i] = sub_states[i].clone(context);
             }
         }
-        return new StateComplex(context, this.getSpecification(context), this.getValues(context).clone(), this.getSubStateVariables(context), cloned_sub_states);
+        return cloned_sub_states;
     }
 
     public boolean equals(CallContext context, State o) {
@@ -371,25 +1122,30 @@ public class StateComplex implements State, TSMMapped, UIEquipped {
         if ((o instanceof StateComplex) == false) { return false; }
         StateComplex other = (StateComplex) o;
 
-        if ((this.getVariables(context) == null) != (other.getVariables(context) == null)) { return false; }
-        if ((this.getValues(context) == null) != (other.getValues(context) == null)) { return false; }
+        if (this.getFingerprint(context) != other.getFingerprint(context)) { return false; }
+
+        if (    this.specification != other.specification
+             && java.util.Arrays.deepEquals(this.valid_values, other.valid_values) == false) { return false; }
+
+        if ((this.variables == null) != (other.variables == null)) { return false; }
 
         if ((this.getSubStateVariables(context) == null) != (other.getSubStateVariables(context) == null)) { return false; }
         if ((this.getSubStates(context) == null) != (other.getSubStates(context) == null)) { return false; }
 
-        if ((this.getVariables(context) != null) && (other.getVariables(context) != null)) {
-            if (this.getVariables(context).length != other.getVariables(context).length) { return false; }
-            for (int i=0; i<this.getVariables(context).length; i++) {
-                if ((this.getVariables(context)[i] == null) != (other.getVariables(context)[i] == null)) { return false; }
-                if (this.getVariables(context)[i] != null && this.getVariables(context)[i].equals(other.getVariables(context)[i]) == false) { return false; }
+        if ((this.variables != null) && (other.variables != null)) {
+            if (this.variables.length != other.variables.length) { return false; }
+            for (int i=0; i<this.variables.length; i++) {
+                if ((this.variables[i] == null) != (other.variables[i] == null)) { return false; }
+                if (this.variables[i] != null && this.variables[i].equals(other.variables[i]) == false) { return false; }
             }
         }
 
-        if ((this.getValues(context) != null) && (other.getValues(context) != null)) {
-            if (this.getValues(context).length != other.getValues(context).length) { return false; }
-            for (int i=0; i<this.getValues(context).length; i++) {
-                if ((this.getValues(context)[i] == null) != (other.getValues(context)[i] == null)) { return false; }
-                if (this.getValues(context)[i] != null && this.getValues(context)[i].equals(other.getValues(context)[i]) == false) { return false; }
+        // per slot, since getValues would have to unshare copied values
+        if ((this.variables != null) && (other.variables != null)) {
+            for (int i=0; i<this.variables.length; i++) {
+                String value = this.getValue(context, i);
+                if ((value == null) != (other.getValue(context, i) == null)) { return false; }
+                if (value != null && value.equals(other.getValue(context, i)) == false) { return false; }
             }
         }
 
@@ -413,13 +1169,14 @@ public class StateComplex implements State, TSMMapped, UIEquipped {
     }
     
     public Object saveToPersistentType(CallContext context) {
+        if (StateMetrics.isEnabled(context)) { StateMetrics.recordSave(context); }
         StringBuffer sb = new StringBuffer();
         boolean first = true;
         if (this.variables != null) {
             for (int i=0; i<this.variables.length; i++) {
                 if (first == false) { sb.append(","); }
                 first = false;
-                sb.append(this.values[i]);
+                sb.append(this.getValue(context, i));
             }
         }
         if (this.sub_state_variables != null && this.sub_state_variables.length != 0) {
@@ -430,6 +1187,7 @@ public class StateComplex implements State, TSMMapped, UIEquipped {
     }
 
     public StateComplex loadFromPersistentType(CallContext context, Object persistent_type) {
+        if (StateMetrics.isEnabled(context)) { StateMetrics.recordLoad(context); }
         if (persistent_type == null) { return this; }
         String[] values = ((String) persistent_type).split(",");
         if (values != null) {
@@ -440,6 +1198,191 @@ public class StateComplex implements State, TSMMapped, UIEquipped {
         return this;
     }
 
+    protected StateJournal journal;
+    protected long         journal_entity;
+
+    /**
+       Records all subsequent value transitions of this state in the
+       journal under the given entity number; null detaches. Current
+       values are journaled as transitions from null.
+    */
+    public void attachJournal(CallContext context, StateJournal journal, long entity) {
+        if (journal != null && journal.getSpecification(context) != this.specification) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot attach journal to complex state '%(id)', it has a different specification", "id", this.getId(context));
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        this.journal        = journal;
+        this.journal_entity = entity;
+        if (journal != null && this.variables != null) {
+            for (int i=0; i<this.variables.length; i++) {
+                int ordinal = this.getOrdinal(context, i);
+                if (ordinal != 0) { journal.append(context, entity, i, 0, ordinal); }
+            }
+        }
+    }
+
+    static protected class ListenerRegistration {
+        protected ListenerRegistration(StateChangeListener listener, Executor executor, String[] variables) {
+            this.listener  = listener;
+            this.executor  = executor;
+            this.variables = variables;
+        }
+        protected final StateChangeListener listener;
+        protected final Executor            executor;
+        protected final String[]            variables;
+    }
+
+    protected volatile ListenerRegistration[] listeners;
+
+    public void addStateChangeListener(CallContext context, StateChangeListener listener, String... variables) {
+        this.addStateChangeListener(context, listener, (Executor) null, variables);
+    }
+
+    public synchronized void addStateChangeListener(CallContext context, StateChangeListener listener, Executor executor, String... variables) {
+        for (int i=0; variables != null && i<variables.length; i++) {
+            if (this.specification.slotOf(context, variables[i]) == -1) {
+                CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot listen to variable '%(variable)' in complex state '%(id)' (no such variable)", "variable", variables[i], "id", this.getId(context));
+                throw (ExceptionPreConditionViolation) null; // compiler insists
+            }
+        }
+        ListenerRegistration registration = new ListenerRegistration(listener, executor, variables == null || variables.length == 0 ? null : variables);
+        ListenerRegistration[] listeners = this.listeners;
+        if (listeners == null) {
+            this.listeners = new ListenerRegistration[] { registration };
+        } else {
+            listeners = java.util.Arrays.copyOf(listeners, listeners.length + 1);
+            listeners[listeners.length - 1] = registration;
+            this.listeners = listeners;
+        }
+    }
+
+    public synchronized void removeStateChangeListener(CallContext context, StateChangeListener listener) {
+        ListenerRegistration[] listeners = this.listeners;
+        if (listeners == null) { return; }
+        int count = 0;
+        for (ListenerRegistration registration : listeners) {
+            if (registration.listener != listener) { count++; }
+        }
+        if (count == listeners.length) { return; }
+        ListenerRegistration[] remaining = new ListenerRegistration[count];
+        int j = 0;
+        for (ListenerRegistration registration : listeners) {
+            if (registration.listener != listener) { remaining[j++] = registration; }
+        }
+        this.listeners = (count == 0 ? null : remaining);
+    }
+
+    protected int       batch_depth;
+    protected String[]  batch_old_values;
+    protected boolean[] batch_touched;
+    protected boolean   batch_sub_states;
+
+    /**
+       Starts a batch of modifications; listeners receive one coalesced
+       event when the outermost batch ends. Batches are not thread safe,
+       like modifications of this class in general.
+    */
+    public void beginBatch(CallContext context) {
+        if (this.batch_depth++ == 0 && this.variables != null) {
+            if (this.batch_touched == null) {
+                this.batch_old_values = new String[this.variables.length];
+                this.batch_touched    = new boolean[this.variables.length];
+            }
+        }
+    }
+
+    public void endBatch(CallContext context) {
+        if (this.batch_depth == 0) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot end batch of complex state '%(id)', no batch started", "id", this.getId(context));
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        if (--this.batch_depth != 0) { return; }
+        int count = 0;
+        for (int i=0; this.batch_touched != null && i<this.batch_touched.length; i++) {
+            if (this.batch_touched[i]) {
+                String value = this.getValue(context, i);
+                if (value == null ? this.batch_old_values[i] == null : value.equals(this.batch_old_values[i])) {
+                    this.batch_touched[i] = false;
+                } else {
+                    count++;
+                }
+            }
+        }
+        boolean sub_states = this.batch_sub_states;
+        this.batch_sub_states = false;
+        if (count == 0 && sub_states == false) { return; }
+        String[] variables  = new String[count];
+        String[] old_values = new String[count];
+        String[] new_values = new String[count];
+        for (int i=0, j=0; j<count; i++) {
+            if (this.batch_touched[i]) {
+                variables[j]  = this.variables[i];
+                old_values[j] = this.batch_old_values[i];
+                new_values[j] = this.getValue(context, i);
+                this.batch_touched[i]    = false;
+                this.batch_old_values[i] = null;
+                j++;
+            }
+        }
+        this.deliver(context, new StateChangeEvent(context, this, variables, old_values, new_values, sub_states));
+    }
+
+    protected void valueChanged(CallContext context, int slot, String old_value, String new_value) {
+        if (old_value == null ? new_value == null : old_value.equals(new_value)) { return; }
+        if (this.batch_depth > 0) {
+            if (this.batch_touched[slot] == false) {
+                this.batch_touched[slot]    = true;
+                this.batch_old_values[slot] = old_value;
+            }
+            return;
+        }
+        this.deliver(context, new StateChangeEvent(context, this, new String[] { this.variables[slot] }, new String[] { old_value }, new String[] { new_value }, false));
+    }
+
+    protected void subStatesChanged(CallContext context) {
+        if (this.batch_depth > 0) {
+            this.batch_sub_states = true;
+            return;
+        }
+        this.deliver(context, new StateChangeEvent(context, this, new String[0], new String[0], new String[0], true));
+    }
+
+    protected void deliver(final CallContext context, StateChangeEvent event) {
+        ListenerRegistration[] listeners = this.listeners;
+        if (listeners == null) { return; }
+        for (ListenerRegistration registration : listeners) {
+            final StateChangeEvent    restricted = (registration.variables == null ? event : event.restrict(context, registration.variables));
+            final StateChangeListener listener   = registration.listener;
+            if (restricted == null) { continue; }
+            if (registration.executor == null) {
+                listener.stateChanged(context, restricted);
+            } else {
+                registration.executor.execute(new Runnable() {
+                    public void run() {
+                        listener.stateChanged(Context.create(context), restricted);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+       Writes the state in the binary format of {@link StateComplexCodec}
+    */
+    public void saveToBinary(CallContext context, ByteBuffer buffer) {
+        if (StateMetrics.isEnabled(context)) { StateMetrics.recordSave(context); }
+        StateComplexCodec.write(context, this, buffer);
+    }
+
+    /**
+       Reads values written by {@link #saveToBinary}
+    */
+    public StateComplex loadFromBinary(CallContext context, ByteBuffer buffer) {
+        if (StateMetrics.isEnabled(context)) { StateMetrics.recordLoad(context); }
+        StateComplexCodec.read(context, this, buffer);
+        return this;
+    }
+
     protected Map<String,Vector<UIEquipment>> ui_equipments_map;
     protected String[] visible_state_variables;
 
@@ -0,0 +1,363 @@
+package com.sphenon.basics.state.classes;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.exception.*;
+
+import com.sphenon.basics.state.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+   Thread safe complex state without sub states.
+
+   The values are held in an immutable, canonical {@link StateComplexSnapshot}
+   behind an atomic reference. Readers never lock and never see a partially
+   updated state as long as they read from one snapshot (see {@link #get});
+   conditions are evaluated against the current snapshot automatically.
+   Writers replace the snapshot with compare and set, so updates of several
+   variables are atomic, and since snapshots are canonical, comparing the
+   reference compares all values.
+
+   Writers do not lock as long as the state is not observed. Once a
+   journal is attached or a listener is added, writers replace the
+   snapshot and produce journal records and change events under a lock,
+   so that these are produced in the order of the updates.
+*/
+public class StateComplexAtomic extends StateComplex {
+
+    public StateComplexAtomic (CallContext context, String[] variables, String[] values) {
+        this(context, StateSpecificationRegistry.get(context).getSpecification(context, variables, values), values);
+    }
+
+    public StateComplexAtomic (CallContext context, Specification specification, String[] values) {
+        super(context, specification, values, null, null);
+    }
+
+    protected StateComplexAtomic (CallContext context, StateComplexSnapshot snapshot) {
+        super(context, snapshot.getSpecification(context), null, null);
+        this.current.set(snapshot);
+    }
+
+    protected AtomicReference<StateComplexSnapshot> current;
+    protected ReentrantLock write_lock;
+    protected volatile boolean observed;
+    protected AtomicInteger unobserved_writers;
+
+    protected void allocate (CallContext context) {
+        StateComplexPool pool = StateComplexPool.get(context, this.specification);
+        this.current            = new AtomicReference<StateComplexSnapshot>(pool.intern(context, new String[this.variables.length], 0L));
+        this.write_lock         = new ReentrantLock();
+        this.unobserved_writers = new AtomicInteger();
+    }
+
+    /**
+       Replaces the snapshot if it is the expected one (any if expected is
+       null) and returns the replaced one, or null
+    */
+    protected StateComplexSnapshot replace (CallContext context, StateComplexSnapshot expected, StateComplexSnapshot update) {
+        StateComplexSnapshot before;
+        this.unobserved_writers.incrementAndGet();
+        if (this.observed == false) {
+            try {
+                before = this.swap(expected, update);
+            } finally {
+                this.unobserved_writers.decrementAndGet();
+            }
+            if (before != null && before != update) { this.changed(context); }
+            return before;
+        }
+        this.unobserved_writers.decrementAndGet();
+        this.write_lock.lock();
+        try {
+            before = this.swap(expected, update);
+            if (before != null) { this.changed(context, before, update); }
+            return before;
+        } finally {
+            this.write_lock.unlock();
+        }
+    }
+
+    protected StateComplexSnapshot swap (StateComplexSnapshot expected, StateComplexSnapshot update) {
+        if (expected == null) { return this.current.getAndSet(update); }
+        return this.current.compareAndSet(expected, update) ? expected : null;
+    }
+
+    /**
+       Switches writers to ordered replacement; the caller holds the write
+       lock. Waits for writers which started unordered.
+    */
+    protected void observe (CallContext context) {
+        this.observed = true;
+        while (this.unobserved_writers.get() != 0) { Thread.onSpinWait(); }
+    }
+
+    public void attachJournal(CallContext context, StateJournal journal, long entity) {
+        this.write_lock.lock();
+        try {
+            this.observe(context);
+            super.attachJournal(context, journal, entity);
+        } finally {
+            this.write_lock.unlock();
+        }
+    }
+
+    public void addStateChangeListener(CallContext context, StateChangeListener listener, Executor executor, String... variables) {
+        this.write_lock.lock();
+        try {
+            this.observe(context);
+            super.addStateChangeListener(context, listener, executor, variables);
+        } finally {
+            this.write_lock.unlock();
+        }
+    }
+
+    /**
+       The current values, consistent and immutable
+    */
+    public StateComplexSnapshot get (CallContext context) {
+        return this.current.get();
+    }
+
+    /**
+       Replaces all values unconditionally
+    */
+    public void set (CallContext context, StateComplex values) {
+        StateComplexSnapshot update = StateComplexPool.get(context, this.specification).intern(context, values);
+        this.replace(context, null, update);
+    }
+
+    /**
+       Replaces the values if they are still the expected ones
+    */
+    public boolean compareAndSet (CallContext context, StateComplexSnapshot expected, StateComplexSnapshot update) {
+        if (update.getPool(context) != StateComplexPool.get(context, this.specification)) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot set complex state '%(id)' to '%(update)', it has a different specification", "id", this.getId(context), "update", update.getId(context));
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        return this.replace(context, expected, update) != null;
+    }
+
+    /**
+       Sets the given variables if all current values equal the expected
+       ones (null entries in expected_values match null); expected_values
+       must contain a value for each variable of the state
+    */
+    public boolean compareAndSet (CallContext context, String[] expected_values, String[] variables, String[] values) {
+        if (expected_values.length != this.variables.length) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot compare complex state '%(id)', expected '%(expected)' values, got '%(got)'", "id", this.getId(context), "expected", this.variables.length, "got", expected_values.length);
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        int[] slots = this.slotsOf(context, variables);
+        StateComplexSnapshot before = this.current.get();
+        for (int i=0; i<expected_values.length; i++) {
+            String value = before.getValue(context, i);
+            if (value == null ? expected_values[i] != null : value.equals(expected_values[i]) == false) { return false; }
+        }
+        return this.compareAndSet(context, before, before.with(context, slots, values));
+    }
+
+    /**
+       Sets the given variables if the current values match the condition;
+       retries while concurrent modifications leave the condition true.
+       A null condition always matches.
+    */
+    public boolean compareAndSet (CallContext context, StateCondition expected_condition, String[] variables, String[] values) {
+        int[] slots = this.slotsOf(context, variables);
+        while (true) {
+            StateComplexSnapshot before = this.current.get();
+            if (expected_condition != null && expected_condition.matches(context, before) == false) { return false; }
+            if (this.compareAndSet(context, before, before.with(context, slots, values))) { return true; }
+        }
+    }
+
+    /**
+       Like {@link #compareAndSet(CallContext,StateCondition,String[],String[])}
+       with a condition string, see {@link StateComplexConditionCache}
+    */
+    public boolean compareAndSet (CallContext context, String expected_condition, String[] variables, String[] values) {
+        return this.compareAndSet(context, expected_condition == null ? null : StateComplexConditionCache.get(context).getCompiled(context, expected_condition, this.specification), variables, values);
+    }
+
+    /**
+       Sets several variables atomically
+    */
+    public void setValues (CallContext context, String[] variables, String[] values) {
+        this.compareAndSet(context, (StateCondition) null, variables, values);
+    }
+
+    protected int[] slotsOf (CallContext context, String[] variables) {
+        int[] slots = new int[variables.length];
+        for (int i=0; i<variables.length; i++) {
+            slots[i] = this.specification.slotOf(context, variables[i]);
+            if (slots[i] == -1) {
+                CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot set variable '%(variable)' in complex state '%(id)' (no such variable)", "variable", variables[i], "id", this.getId(context));
+                throw (ExceptionPreConditionViolation) null; // compiler insists
+            }
+        }
+        return slots;
+    }
+
+    protected void changed (CallContext context, StateComplexSnapshot before, StateComplexSnapshot after) {
+        if (before == after) { return; }
+        StateJournal journal = this.journal;
+        if (journal != null) {
+            for (int i=0; i<this.variables.length; i++) {
+                int old_ordinal = before.getOrdinal(context, i);
+                int new_ordinal = after.getOrdinal(context, i);
+                if (old_ordinal != new_ordinal) { journal.append(context, this.journal_entity, i, old_ordinal, new_ordinal); }
+            }
+        }
+        this.changed(context);
+        if (this.listeners != null) {
+            int count = 0;
+            for (int i=0; i<this.variables.length; i++) {
+                if (differs(before.getValue(context, i), after.getValue(context, i))) { count++; }
+            }
+            String[] variables  = new String[count];
+            String[] old_values = new String[count];
+            String[] new_values = new String[count];
+            for (int i=0, j=0; j<count; i++) {
+                if (differs(before.getValue(context, i), after.getValue(context, i))) {
+                    variables[j]  = this.variables[i];
+                    old_values[j] = before.getValue(context, i);
+                    new_values[j] = after.getValue(context, i);
+                    j++;
+                }
+            }
+            this.deliver(context, new StateChangeEvent(context, this, variables, old_values, new_values, false));
+        }
+    }
+
+    static protected boolean differs (String a, String b) {
+        return a == null ? b != null : a.equals(b) == false;
+    }
+
+    /**
+       Batches are not supported, multi variable updates are coalesced
+       into one event anyway
+    */
+    public void beginBatch(CallContext context) {
+    }
+
+    public void endBatch(CallContext context) {
+    }
+
+    protected void setValue (CallContext context, String variable, String value, int i) {
+        while (true) {
+            StateComplexSnapshot before = this.current.get();
+            if (this.compareAndSet(context, before, before.with(context, i, value))) { break; }
+        }
+        if (StateMetrics.isEnabled(context)) { StateMetrics.recordSetValue(context); }
+    }
+
+    public void setOrdinal (CallContext context, int slot, int ordinal) {
+        int count = this.specification.getOrdinalCount(context, slot);
+        if (ordinal < 0 || ordinal > count) {
+            if (StateMetrics.isEnabled(context)) { StateMetrics.recordValidationFailure(context); }
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot set variable '%(variable)' to ordinal '%(ordinal)' in complex state '%(id)' (invalid value)", "variable", this.variables[slot], "ordinal", ordinal, "id", this.getId(context));
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        this.setValue(context, this.variables[slot], this.specification.getValue(context, slot, ordinal), slot);
+    }
+
+    public StateComplex setSubStates(CallContext context, Object... arguments) {
+        if (arguments == null || arguments.length == 0) { return this; }
+        CustomaryContext.create((Context)context).throwLimitation(context, "Atomic complex states cannot have sub states");
+        throw (ExceptionLimitation) null; // compiler insists
+    }
+
+    public String getValue (CallContext context, int slot) {
+        return this.current.get().getValue(context, slot);
+    }
+
+    public String getDescription (CallContext context, int slot) {
+        return this.current.get().getDescription(context, slot);
+    }
+
+    public int getOrdinal (CallContext context, int slot) {
+        return this.current.get().getOrdinal(context, slot);
+    }
+
+    public String[] getValues (CallContext context) {
+        return this.current.get().getValues(context);
+    }
+
+    public String[] getDescriptions (CallContext context) {
+        return this.current.get().getDescriptions(context);
+    }
+
+    public String getId (CallContext context) {
+        return this.current.get().getId(context);
+    }
+
+    public String getDescription (CallContext context) {
+        return this.current.get().getDescription(context);
+    }
+
+    public long getFingerprint (CallContext context) {
+        return this.current.get().getFingerprint(context);
+    }
+
+    public void invalidate(CallContext context) {
+        this.changed(context);
+    }
+
+    public StateComplex snapshot(CallContext context) {
+        return this.current.get();
+    }
+
+    public StateComplexAtomic clone(CallContext context) {
+        return new StateComplexAtomic(context, this.current.get());
+    }
+
+    public boolean equals(CallContext context, State o) {
+        if (o == this) { return true; }
+        if (o instanceof StateComplexAtomic) { o = ((StateComplexAtomic) o).get(context); }
+        return this.current.get().equals(context, o);
+    }
+
+    public Object saveToPersistentType(CallContext context) {
+        return this.current.get().saveToPersistentType(context);
+    }
+
+    public StateComplex loadFromPersistentType(CallContext context, Object persistent_type) {
+        if (persistent_type == null) { return this; }
+        StateComplex values = this.current.get().clone(context);
+        values.loadFromPersistentType(context, persistent_type);
+        this.set(context, values);
+        return this;
+    }
+
+    public void saveToBinary(CallContext context, ByteBuffer buffer) {
+        StateComplexCodec.write(context, this.current.get(), buffer);
+    }
+
+    public StateComplex loadFromBinary(CallContext context, ByteBuffer buffer) {
+        StateComplex values = this.current.get().clone(context);
+        StateComplexCodec.read(context, values, buffer);
+        this.set(context, values);
+        return this;
+    }
+}
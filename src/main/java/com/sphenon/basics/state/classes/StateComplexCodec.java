@@ -0,0 +1,341 @@
+package com.sphenon.basics.state.classes;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.exception.*;
+
+import com.sphenon.basics.state.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+   Binary encoding of complex states, an alternative to the comma joined
+   string of {@link StateComplex#saveToPersistentType}.
+
+   Format (version 1), all counts and ordinals as unsigned LEB128 varints:
+
+       byte     version
+       long     specification fingerprint
+       varint   number of variables n
+       n times  value: for variables with declared values the ordinal
+                (0 for unset), otherwise 0 for null or UTF-8 byte length
+                + 1 followed by the bytes
+       varint   number of sub states m
+       m times  byte kind (0: null, 1: complex, 2: other) followed by the
+                nested encoding (complex) or the id as string (other)
+
+   Values containing commas are no problem, sub states are supported as
+   long as the target state has the same sub state structure. Declared
+   values are read without creating Strings. Variables without declared
+   values in a specification declaring values for other variables cannot
+   be set, their encoded values must equal the current ones.
+*/
+public class StateComplexCodec {
+
+    static public final byte VERSION = 1;
+
+    static protected final byte SUB_STATE_NULL    = 0;
+    static protected final byte SUB_STATE_COMPLEX = 1;
+    static protected final byte SUB_STATE_OTHER   = 2;
+
+    static public void write(CallContext context, StateComplex state, ByteBuffer buffer) {
+        StateComplex.Specification specification = state.getSpecification(context);
+        buffer.put(VERSION);
+        buffer.putLong(specification.getFingerprint(context));
+        int size = specification.getSize(context);
+        writeVarInt(buffer, size);
+        for (int i=0; i<size; i++) {
+            if (specification.getOrdinalCount(context, i) >= 0) {
+                int ordinal = state.getOrdinal(context, i);
+                if (ordinal < 0) {
+                    CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot encode complex state '%(id)', variable '%(variable)' has an undeclared value", "id", state.getId(context), "variable", specification.getVariable(context, i));
+                    throw (ExceptionPreConditionViolation) null; // compiler insists
+                }
+                writeVarInt(buffer, ordinal);
+            } else {
+                writeString(buffer, state.getValue(context, i));
+            }
+        }
+        State[] sub_states = state.getSubStates(context);
+        int sub_size = (sub_states == null ? 0 : sub_states.length);
+        writeVarInt(buffer, sub_size);
+        for (int i=0; i<sub_size; i++) {
+            if (sub_states[i] == null) {
+                buffer.put(SUB_STATE_NULL);
+            } else if (sub_states[i] instanceof StateComplex) {
+                buffer.put(SUB_STATE_COMPLEX);
+                write(context, (StateComplex) sub_states[i], buffer);
+            } else if (sub_states[i] instanceof Class_State) {
+                buffer.put(SUB_STATE_OTHER);
+                writeString(buffer, sub_states[i].getId(context));
+            } else {
+                CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot encode complex state '%(id)', sub state '%(index)' is of unsupported class '%(class)'", "id", state.getId(context), "index", i, "class", sub_states[i].getClass().getName());
+                throw (ExceptionPreConditionViolation) null; // compiler insists
+            }
+        }
+    }
+
+    /**
+       Reads values written by {@link #write} into the state. The encoding
+       is validated completely before any value is applied, so on failure
+       the state and its sub states are unchanged.
+    */
+    static public void read(CallContext context, StateComplex state, ByteBuffer buffer) {
+        check(context, state, buffer.duplicate().order(buffer.order()));
+        apply(context, state, buffer);
+    }
+
+    static protected void check(CallContext context, StateComplex state, ByteBuffer buffer) {
+        StateComplex.Specification specification = state.getSpecification(context);
+        byte version = buffer.get();
+        if (version != VERSION) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot decode complex state, unsupported version '%(version)'", "version", version);
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        long fingerprint = buffer.getLong();
+        int size = readVarInt(context, buffer);
+        int expected_size = specification.getSize(context);
+        if (fingerprint != specification.getFingerprint(context) || size != expected_size) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot decode complex state into '%(id)', encoded with a different specification", "id", state.getId(context));
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        for (int i=0; i<size; i++) {
+            int count = specification.getOrdinalCount(context, i);
+            if (count >= 0) {
+                int ordinal = readVarInt(context, buffer);
+                if (ordinal < 0 || ordinal > count) {
+                    CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot decode complex state into '%(id)', invalid ordinal '%(ordinal)' of variable '%(variable)'", "id", state.getId(context), "ordinal", ordinal, "variable", specification.getVariable(context, i));
+                    throw (ExceptionPreConditionViolation) null; // compiler insists
+                }
+            } else if (state.valid_values != null) {
+                // variables without declared values cannot be set in states
+                // declaring values for other variables
+                String value = readString(context, buffer);
+                if (value == null ? state.getValue(context, i) != null : value.equals(state.getValue(context, i)) == false) {
+                    CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot decode complex state into '%(id)', variable '%(variable)' has no declared values", "id", state.getId(context), "variable", specification.getVariable(context, i));
+                    throw (ExceptionPreConditionViolation) null; // compiler insists
+                }
+            } else {
+                skipString(context, buffer);
+            }
+        }
+        State[] sub_states = state.getSubStates(context);
+        int sub_size = readVarInt(context, buffer);
+        if (sub_size != (sub_states == null ? 0 : sub_states.length)) {
+            CustomaryContext.create((Context)context).throwLimitation(context, "Cannot decode complex state into '%(id)', sub state structure differs", "id", state.getId(context));
+            throw (ExceptionLimitation) null; // compiler insists
+        }
+        for (int i=0; i<sub_size; i++) {
+            byte kind = buffer.get();
+            if (kind == SUB_STATE_NULL && sub_states[i] == null) {
+                continue;
+            } else if (kind == SUB_STATE_COMPLEX && sub_states[i] instanceof StateComplex) {
+                check(context, (StateComplex) sub_states[i], buffer);
+            } else if (kind == SUB_STATE_OTHER && sub_states[i] instanceof Class_State) {
+                skipString(context, buffer);
+            } else {
+                CustomaryContext.create((Context)context).throwLimitation(context, "Cannot decode complex state into '%(id)', sub state structure differs", "id", state.getId(context));
+                throw (ExceptionLimitation) null; // compiler insists
+            }
+        }
+    }
+
+    /**
+       Applies an encoding that passed {@link #check}
+    */
+    static protected void apply(CallContext context, StateComplex state, ByteBuffer buffer) {
+        StateComplex.Specification specification = state.getSpecification(context);
+        buffer.get();
+        buffer.getLong();
+        int size = readVarInt(context, buffer);
+        for (int i=0; i<size; i++) {
+            if (specification.getOrdinalCount(context, i) >= 0) {
+                int ordinal = readVarInt(context, buffer);
+                if (ordinal != state.getOrdinal(context, i)) {
+                    state.setOrdinal(context, i, ordinal);
+                }
+            } else {
+                String value = readString(context, buffer);
+                if (value == null ? state.getValue(context, i) != null : value.equals(state.getValue(context, i)) == false) {
+                    state.setValue(context, i, value);
+                }
+            }
+        }
+        State[] sub_states = state.getSubStates(context);
+        int sub_size = readVarInt(context, buffer);
+        for (int i=0; i<sub_size; i++) {
+            byte kind = buffer.get();
+            if (kind == SUB_STATE_COMPLEX) {
+                apply(context, (StateComplex) sub_states[i], buffer);
+            } else if (kind == SUB_STATE_OTHER) {
+                ((Class_State) sub_states[i]).setId(context, readString(context, buffer));
+            }
+        }
+    }
+
+    /**
+       Number of bytes {@link #write} produces for the state
+    */
+    static public int getEncodedSize(CallContext context, StateComplex state) {
+        StateComplex.Specification specification = state.getSpecification(context);
+        int size = specification.getSize(context);
+        int bytes = 1 + 8 + sizeOfVarInt(size);
+        for (int i=0; i<size; i++) {
+            if (specification.getOrdinalCount(context, i) >= 0) {
+                bytes += sizeOfVarInt(state.getOrdinal(context, i));
+            } else {
+                bytes += sizeOfString(state.getValue(context, i));
+            }
+        }
+        State[] sub_states = state.getSubStates(context);
+        int sub_size = (sub_states == null ? 0 : sub_states.length);
+        bytes += sizeOfVarInt(sub_size);
+        for (int i=0; i<sub_size; i++) {
+            bytes += 1;
+            if (sub_states[i] instanceof StateComplex) {
+                bytes += getEncodedSize(context, (StateComplex) sub_states[i]);
+            } else if (sub_states[i] != null) {
+                bytes += sizeOfString(sub_states[i].getId(context));
+            }
+        }
+        return bytes;
+    }
+
+    static public void writeVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static public int readVarInt(CallContext context, ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35 && buffer.hasRemaining(); shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) { return value; }
+        }
+        CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot decode complex state, malformed varint");
+        throw (ExceptionPreConditionViolation) null; // compiler insists
+    }
+
+    static public int sizeOfVarInt(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    static protected int utf8Length(String value) {
+        int length = 0;
+        for (int i=0; i<value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i+1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    static protected int sizeOfString(String value) {
+        if (value == null) { return 1; }
+        int length = utf8Length(value);
+        return sizeOfVarInt(length + 1) + length;
+    }
+
+    /**
+       Writes null as 0, otherwise the UTF-8 length + 1 and the bytes,
+       encoding directly into the buffer. Unpaired surrogates are written
+       as '?', like String.getBytes does.
+    */
+    static protected void writeString(ByteBuffer buffer, String value) {
+        if (value == null) {
+            writeVarInt(buffer, 0);
+            return;
+        }
+        writeVarInt(buffer, utf8Length(value) + 1);
+        for (int i=0; i<value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i+1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                buffer.put((byte) (0xF0 | (cp >> 18)));
+                buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    static protected void skipString(CallContext context, ByteBuffer buffer) {
+        int length = readVarInt(context, buffer);
+        if (length == 0) { return; }
+        length--;
+        checkLength(context, buffer, length);
+        buffer.position(buffer.position() + length);
+    }
+
+    static protected String readString(CallContext context, ByteBuffer buffer) {
+        int length = readVarInt(context, buffer);
+        if (length == 0) { return null; }
+        length--;
+        checkLength(context, buffer, length);
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    static protected void checkLength(CallContext context, ByteBuffer buffer, int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot decode complex state, string length '%(length)' exceeds remaining '%(remaining)' bytes", "length", length, "remaining", buffer.remaining());
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+    }
+}
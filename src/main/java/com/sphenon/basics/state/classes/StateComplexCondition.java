@@ -27,12 +27,22 @@ import com.sphenon.basics.data.*;
 
 import com.sphenon.basics.state.*;
 
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class StateComplexCondition implements StateCondition {
 
+    /**
+       Matches the state against the condition; parsed and compiled
+       conditions are shared via the {@link StateComplexConditionCache}.
+    */
     static public boolean matches(CallContext context, String condition, State state) {
-        return (new StateComplexCondition(context, condition)).matches(context, state);
+        return StateComplexConditionCache.get(context).matches(context, condition, state);
     }
 
     protected com.sphenon.basics.expression.parsed.Expression expression;
@@ -60,8 +70,10 @@ public class StateComplexCondition implements StateCondition {
 
     protected void parse(CallContext context) {
         String condition = this.getCondition(context);
+        long start = StateMetrics.isEnabled(context) ? System.nanoTime() : 0L;
         try {
             this.expression = com.sphenon.basics.expression.parsed.ExpressionParser.parse(context, condition);
+            if (StateMetrics.isEnabled(context)) { StateMetrics.recordParse(context, condition, System.nanoTime() - start); }
         } catch (com.sphenon.basics.expression.parsed.ParseException pe) {
             CustomaryContext.create((Context)context).throwPreConditionViolation(context, pe, "Syntax error in state condition '%(condition)'", "condition", condition);
             throw (ExceptionPreConditionViolation) null; // compiler insists
@@ -80,45 +92,270 @@ public class StateComplexCondition implements StateCondition {
         return this.condition;
     }
 
+    public boolean isVolatile (CallContext context) {
+        return this.is_volatile;
+    }
+
+    protected volatile boolean uses_patterns;
+
+    /**
+       True once an evaluation of this condition has queried variables by
+       pattern; such results depend on more than the values of a fixed set
+       of variables.
+    */
+    public boolean usesPatterns (CallContext context) {
+        return this.uses_patterns;
+    }
+
+    public com.sphenon.basics.expression.parsed.Expression getExpression (CallContext context) {
+        if (this.expression == null || this.is_volatile) {
+            this.parse(context);
+        }
+        return this.expression;
+    }
+
+    /**
+       Compiles this condition for states with the given specification, see
+       {@link StateComplexConditionCompiled}.
+    */
+    public StateComplexConditionCompiled compile (CallContext context, StateComplex.Specification specification) {
+        return new StateComplexConditionCompiled(context, this, specification);
+    }
+
+    /**
+       Like {@link #compile(CallContext,StateComplex.Specification)}, sub
+       state variables are resolved in the prototype.
+    */
+    public StateComplexConditionCompiled compile (CallContext context, StateComplex.Specification specification, StateComplex prototype) {
+        return new StateComplexConditionCompiled(context, this, specification, prototype);
+    }
+
+    protected volatile ConcurrentHashMap<String,StatePath> paths;
+
+    /**
+       Compiled path of a dotted variable name used in this condition
+    */
+    public StatePath getPath (CallContext context, String name) {
+        ConcurrentHashMap<String,StatePath> paths = this.paths;
+        if (paths == null) {
+            paths = new ConcurrentHashMap<String,StatePath>();
+            this.paths = paths;
+        }
+        StatePath path = paths.get(name);
+        if (path == null) {
+            path = StatePath.compile(context, name);
+            StatePath existing = paths.putIfAbsent(name, path);
+            if (existing != null) { path = existing; }
+        }
+        return path;
+    }
+
     public String toString() {
         return "[StateCondition: '" + this.condition + "']";
     }
 
+    /**
+       Scope resolving condition variables in a complex state; instances
+       can be rebound and reused for many evaluations, but not concurrently.
+    */
+    static public class StateScope extends Class_Scope {
+        public StateScope (CallContext context) {
+            super(context);
+        }
+
+        protected StateComplex state;
+        protected StateComplexCondition condition;
+
+        public void bind (CallContext context, StateComplexCondition condition, StateComplex state) {
+            this.condition = condition;
+            this.state     = state;
+        }
+
+        protected Result doGetVariable (CallContext context, String name, String search_name_space) {
+            if (search_name_space == null || search_name_space.isEmpty()) {
+                String value = this.state.tryGetValue(context, "main");
+                return new Result(Boolean.valueOf(name.equals(value)));
+            } else if (search_name_space.equals("LHS")) {
+                if (this.condition != null && name.indexOf('.') != -1) {
+                    return new Result(this.condition.getPath(context, name).getValue(context, this.state));
+                }
+                return new Result(this.state.tryGetValue(context, name));
+            } else if (search_name_space.equals("RHS")) {
+                return new Result(name);
+            } else {
+                return null;
+            }
+        }
+
+        public Vector<Variable> getAllVariables(CallContext context, String pattern) {
+            if (this.condition != null) { this.condition.uses_patterns = true; }
+            Vector<Variable> result = new Vector<Variable>();
+            StateComplex.Specification specification = this.state.getSpecification(context);
+            if (specification == null) { return result; }
+            for (int slot : specification.getSlots(context, pattern)) {
+                result.add(new Class_Variable(context, specification.getVariable(context, slot), null, this.state.getValue(context, slot)));
+            }
+            return result;
+        }
+    }
+
     public boolean matches(CallContext context, State state) {
         if ((state instanceof StateComplex) == false) { return false; }
-        final StateComplex sc = (StateComplex) state;
+        if (StateMetrics.isEnabled(context)) {
+            long start = System.nanoTime();
+            boolean result = this.matches(context, state, new StateScope(context));
+            StateMetrics.recordMatch(context, this.condition, System.nanoTime() - start);
+            return result;
+        }
+        return this.matches(context, state, new StateScope(context));
+    }
+
+    /**
+       Like {@link #matches(CallContext,State)}, reusing the given scope
+    */
+    public boolean matches(CallContext context, State state, StateScope scope) {
+        if ((state instanceof StateComplex) == false) { return false; }
+        if (state instanceof StateComplexAtomic) { state = ((StateComplexAtomic) state).get(context); }
 
         try {
             if (this.expression == null || this.is_volatile) {
                 this.parse(context);
             }
-            boolean result =
-                this.expression.isTrue(context, new Class_Scope(context) {
-                        protected Result doGetVariable (CallContext context, String name, String search_name_space) {
-                            if (search_name_space == null || search_name_space.isEmpty()) {
-                                String value = sc.tryGetValue(context, "main");
-                                return new Result(new Boolean(name.equals(value)));
-                            } else if (search_name_space.equals("LHS")) {
-                                return new Result(sc.tryGetValue(context, name));
-                            } else if (search_name_space.equals("RHS")) {
-                                return new Result(name);
-                            } else {
-                                return null;
-                            }
-                        }
-                        public Vector<Variable> getAllVariables(CallContext context, String pattern) {
-                            Vector<Variable> result = new Vector<Variable>();
-                            for (String[] matching : sc.getValues(context, pattern)) {
-                                result.add(new Class_Variable(context, matching[0], null, matching[1]));
-                            }
-                            return result;
-                        }
-                    }
-                );
+            scope.bind(context, this, (StateComplex) state);
+            boolean result = this.expression.isTrue(context, scope);
             return result;
         } catch (EvaluationFailure ef) {
             CustomaryContext.create((Context)context).throwConfigurationError(context, ef, "Evaluation of state condition '%(condition)' failed", "condition", this.condition);
             throw (ExceptionConfigurationError) null; // compiler insists
         }
     }
+
+    /**
+       Evaluates this condition for each of the states; bit i of the result
+       is set if states[i] matches. States of the same specification share
+       one compilation of the condition.
+    */
+    public BitSet matches(CallContext context, State[] states) {
+        long[] words = new long[(states.length + 63) >> 6];
+        StateComplexCondition condition = this.getBatchCondition(context);
+        new BatchTask(context, condition, states, 0, states.length, words, Integer.MAX_VALUE, new ConcurrentHashMap<StateComplex.Specification,StateComplexConditionCompiled>()).compute();
+        if (condition.uses_patterns) { this.uses_patterns = true; }
+        return BitSet.valueOf(words);
+    }
+
+    /**
+       Once a batch has compiled the condition for this many specifications,
+       states of further specifications are interpreted
+    */
+    static public final int MAXIMUM_BATCH_COMPILATIONS = 16;
+
+    /**
+       The condition evaluated by a batch: a volatile condition is read once
+       and parsed into a fixed copy, so that all states of the batch see the
+       same text and workers do not reparse into this condition's fields
+    */
+    protected StateComplexCondition getBatchCondition (CallContext context) {
+        if (this.is_volatile == false) { return this; }
+        return new StateComplexCondition(context, this.getCondition(context));
+    }
+
+    public BitSet matches(CallContext context, Collection<? extends State> states) {
+        return this.matches(context, states.toArray(new State[states.size()]));
+    }
+
+    /**
+       Like {@link #matches(CallContext,State[])}, splitting the states into
+       chunks evaluated in parallel on the given pool (the common pool if
+       null). Each chunk is evaluated in its own context created from the
+       given one.
+    */
+    public BitSet matches(CallContext context, State[] states, ForkJoinPool pool) {
+        long[] words = new long[(states.length + 63) >> 6];
+        StateComplexCondition condition = this.getBatchCondition(context);
+        BatchTask task = new BatchTask(context, condition, states, 0, states.length, words, 4096, new ConcurrentHashMap<StateComplex.Specification,StateComplexConditionCompiled>());
+        (pool == null ? ForkJoinPool.commonPool() : pool).invoke(task);
+        if (condition.uses_patterns) { this.uses_patterns = true; }
+        return BitSet.valueOf(words);
+    }
+
+    /**
+       Evaluates each of the conditions for the state; bit i of the result
+       is set if conditions[i] matches. StateComplexConditions share one
+       scope, other conditions (e.g. compiled ones) are asked directly.
+    */
+    static public BitSet matches(CallContext context, StateCondition[] conditions, State state) {
+        BitSet result = new BitSet(conditions.length);
+        StateScope scope = null;
+        for (int i=0; i<conditions.length; i++) {
+            boolean matches;
+            if (conditions[i] instanceof StateComplexCondition) {
+                if (scope == null) { scope = new StateScope(context); }
+                matches = ((StateComplexCondition) conditions[i]).matches(context, state, scope);
+            } else {
+                matches = conditions[i].matches(context, state);
+            }
+            if (matches) { result.set(i); }
+        }
+        return result;
+    }
+
+    static public BitSet matches(CallContext context, List<? extends StateCondition> conditions, State state) {
+        return matches(context, conditions.toArray(new StateCondition[conditions.size()]), state);
+    }
+
+    static protected class BatchTask extends RecursiveAction {
+        protected BatchTask (CallContext context, StateComplexCondition condition, State[] states, int from, int to, long[] words, int threshold, ConcurrentHashMap<StateComplex.Specification,StateComplexConditionCompiled> compilations) {
+            this.context   = context;
+            this.condition = condition;
+            this.states    = states;
+            this.from      = from;
+            this.to        = to;
+            this.words     = words;
+            this.threshold = threshold;
+            this.compilations = compilations;
+        }
+
+        protected CallContext context;
+        protected StateComplexCondition condition;
+        protected State[] states;
+        protected int from;
+        protected int to;
+        protected long[] words;
+        protected int threshold;
+        protected ConcurrentHashMap<StateComplex.Specification,StateComplexConditionCompiled> compilations;
+
+        protected void compute() {
+            if (this.to - this.from > this.threshold) {
+                // split on a word boundary, so that tasks never share a word
+                int middle = ((this.from + this.to) >>> 1) & ~63;
+                if (middle > this.from) {
+                    invokeAll(new BatchTask(this.context, this.condition, this.states, this.from, middle, this.words, this.threshold, this.compilations),
+                              new BatchTask(this.context, this.condition, this.states, middle, this.to, this.words, this.threshold, this.compilations));
+                    return;
+                }
+            }
+            Context context = Context.create(this.context);
+            StateScope scope = new StateScope(context);
+            StateComplexConditionCompiled compiled = null;
+            for (int i=this.from; i<this.to; i++) {
+                State state = this.states[i];
+                boolean matches;
+                if (state instanceof StateComplex) {
+                    StateComplex.Specification specification = ((StateComplex) state).specification;
+                    if (compiled == null || compiled.specification != specification) {
+                        compiled = this.compilations.get(specification);
+                        if (compiled == null && this.compilations.size() < MAXIMUM_BATCH_COMPILATIONS) {
+                            compiled = this.condition.compile(context, specification, (StateComplex) state);
+                            StateComplexConditionCompiled existing = this.compilations.putIfAbsent(specification, compiled);
+                            if (existing != null) { compiled = existing; }
+                        }
+                    }
+                    matches = compiled != null && compiled.isCompiled(context) ? compiled.matches(context, state) : this.condition.matches(context, state, scope);
+                } else {
+                    matches = this.condition.matches(context, state, scope);
+                }
+                if (matches) { this.words[i >> 6] |= (1L << (i & 63)); }
+            }
+        }
+    }
 }
@@ -0,0 +1,229 @@
+package com.sphenon.basics.state.classes;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.configuration.*;
+
+import com.sphenon.basics.state.*;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+   Process wide cache of parsed and compiled state conditions, keyed by
+   condition string.
+
+   The cache is bounded; when it grows beyond its maximum size, entries
+   which have not been used since the previous sweep are evicted (clock
+   style approximation of LRU). The maximum size is read from the
+   configuration property "com.sphenon.basics.state.ConditionCacheSize"
+   and may be changed at runtime via {@link #setMaximumSize}.
+*/
+public class StateComplexConditionCache {
+
+    static protected Configuration config;
+    static { config = Configuration.create(RootContext.getInitialisationContext(), "com.sphenon.basics.state"); };
+
+    static protected volatile StateComplexConditionCache singleton;
+
+    static public StateComplexConditionCache get (CallContext context) {
+        if (singleton == null) {
+            synchronized (StateComplexConditionCache.class) {
+                if (singleton == null) {
+                    singleton = new StateComplexConditionCache(context, config.get(context, "ConditionCacheSize", 1024));
+                }
+            }
+        }
+        return singleton;
+    }
+
+    /**
+       Upper bound of specifications an entry keeps compilations for; the
+       least recently compiled one is dropped
+    */
+    static public final int MAXIMUM_COMPILATIONS = 8;
+
+    static protected final StateComplexConditionCompiled[] NO_COMPILATIONS = new StateComplexConditionCompiled[0];
+
+    static protected class Entry {
+        protected Entry(StateComplexCondition condition) {
+            this.condition    = condition;
+            this.referenced   = true;
+            this.compilations = NO_COMPILATIONS;
+        }
+        protected final StateComplexCondition condition;
+        protected volatile StateComplexConditionCompiled[] compilations; // copy on write
+        protected volatile boolean referenced;
+
+        protected StateComplexConditionCompiled getCompiled(StateComplex.Specification specification) {
+            for (StateComplexConditionCompiled compiled : this.compilations) {
+                if (compiled.specification == specification) { return compiled; }
+            }
+            return null;
+        }
+
+        protected synchronized void putCompiled(StateComplexConditionCompiled compiled) {
+            StateComplexConditionCompiled[] compilations = this.compilations;
+            for (int i=0; i<compilations.length; i++) {
+                if (compilations[i].specification == compiled.specification) {
+                    compilations = compilations.clone();
+                    compilations[i] = compiled;
+                    this.compilations = compilations;
+                    return;
+                }
+            }
+            int drop = (compilations.length >= MAXIMUM_COMPILATIONS ? 1 : 0);
+            StateComplexConditionCompiled[] result = new StateComplexConditionCompiled[compilations.length - drop + 1];
+            System.arraycopy(compilations, drop, result, 0, compilations.length - drop);
+            result[result.length - 1] = compiled;
+            this.compilations = result;
+        }
+    }
+
+    protected ConcurrentHashMap<String,Entry> entries;
+    protected ReentrantLock eviction_lock;
+    protected LongAdder hits;
+    protected LongAdder misses;
+    protected LongAdder evictions;
+
+    public StateComplexConditionCache (CallContext context, int maximum_size) {
+        this.entries       = new ConcurrentHashMap<String,Entry>();
+        this.eviction_lock = new ReentrantLock();
+        this.hits          = new LongAdder();
+        this.misses        = new LongAdder();
+        this.evictions     = new LongAdder();
+        this.maximum_size  = (maximum_size < 0 ? 0 : maximum_size);
+    }
+
+    protected volatile int maximum_size;
+
+    public int getMaximumSize (CallContext context) {
+        return this.maximum_size;
+    }
+
+    public void setMaximumSize (CallContext context, int maximum_size) {
+        this.maximum_size = (maximum_size < 0 ? 0 : maximum_size);
+        this.evict(context);
+    }
+
+    public int getSize (CallContext context) {
+        return this.entries.size();
+    }
+
+    public long getHits (CallContext context) {
+        return this.hits.sum();
+    }
+
+    public long getMisses (CallContext context) {
+        return this.misses.sum();
+    }
+
+    public long getEvictions (CallContext context) {
+        return this.evictions.sum();
+    }
+
+    public void clear (CallContext context) {
+        this.entries.clear();
+    }
+
+    protected Entry getEntry (CallContext context, String condition) {
+        Entry entry = this.entries.get(condition);
+        if (entry != null) {
+            this.hits.increment();
+        } else {
+            this.misses.increment();
+            entry = new Entry(new StateComplexCondition(context, condition));
+            Entry existing = this.entries.putIfAbsent(condition, entry);
+            if (existing != null) {
+                entry = existing;
+            } else if (this.entries.size() > this.maximum_size) {
+                this.evict(context);
+            }
+        }
+        if (entry.referenced == false) { entry.referenced = true; }
+        return entry;
+    }
+
+    /**
+       Returns the parsed condition, shared by all callers
+    */
+    public StateComplexCondition getCondition (CallContext context, String condition) {
+        return this.getEntry(context, condition).condition;
+    }
+
+    /**
+       Returns the condition compiled for the given specification; each entry
+       keeps compilations for up to {@link #MAXIMUM_COMPILATIONS}
+       specifications.
+    */
+    public StateComplexConditionCompiled getCompiled (CallContext context, String condition, StateComplex.Specification specification) {
+        Entry entry = this.getEntry(context, condition);
+        StateComplexConditionCompiled compiled = entry.getCompiled(specification);
+        if (compiled == null) {
+            compiled = entry.condition.compile(context, specification);
+            entry.putCompiled(compiled);
+        }
+        return compiled;
+    }
+
+    /**
+       Like {@link #getCompiled(CallContext,String,StateComplex.Specification)},
+       for the specification of the given state; conditions reading sub state
+       variables are compiled with the state as prototype.
+    */
+    public StateComplexConditionCompiled getCompiled (CallContext context, String condition, StateComplex state) {
+        Entry entry = this.getEntry(context, condition);
+        StateComplexConditionCompiled compiled = entry.getCompiled(state.specification);
+        if (compiled == null || compiled.needs_prototype) {
+            compiled = entry.condition.compile(context, state.specification, state);
+            entry.putCompiled(compiled);
+        }
+        return compiled;
+    }
+
+    public boolean matches (CallContext context, String condition, State state) {
+        if (state instanceof StateComplex && ((StateComplex) state).specification != null) {
+            return this.getCompiled(context, condition, (StateComplex) state).matches(context, state);
+        }
+        return this.getCondition(context, condition).matches(context, state);
+    }
+
+    protected void evict (CallContext context) {
+        if (this.eviction_lock.tryLock() == false) { return; }
+        try {
+            while (this.entries.size() > this.maximum_size) {
+                Iterator<Entry> iterator = this.entries.values().iterator();
+                while (iterator.hasNext() && this.entries.size() > this.maximum_size) {
+                    Entry entry = iterator.next();
+                    if (entry.referenced) {
+                        entry.referenced = false;
+                    } else {
+                        iterator.remove();
+                        this.evictions.increment();
+                    }
+                }
+            }
+        } finally {
+            this.eviction_lock.unlock();
+        }
+    }
+}
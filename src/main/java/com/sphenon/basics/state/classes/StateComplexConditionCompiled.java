@@ -0,0 +1,390 @@
+package com.sphenon.basics.state.classes;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.expression.*;
+import com.sphenon.basics.expression.classes.*;
+import com.sphenon.basics.expression.returncodes.*;
+
+import com.sphenon.basics.state.*;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Vector;
+
+/**
+   A StateComplexCondition compiled against a given StateComplex.Specification.
+
+   The condition is turned into a decision tree whose inner nodes test the
+   ordinal of a variable slot and whose leaves carry the result. The tree is
+   built by evaluating the parsed expression with a probing scope, branching
+   on each variable in the order the expression asks for it, so the tree
+   mirrors exactly what the interpreter would compute.
+
+   Matching a state of the bound specification walks the tree without any
+   allocation. Other states, values not declared in the specification and
+   conditions which cannot be compiled (volatile conditions, variables
+   without declared values, pattern lookups) are handed to the interpreting
+   StateComplexCondition.
+
+   Sub state variables ("order.payment.status") are compiled if a prototype
+   state is given: each such name becomes a virtual slot behind the
+   specification's own slots, read via a {@link StatePath} and valid as
+   long as the state reached has the specification found in the prototype.
+*/
+public class StateComplexConditionCompiled implements StateCondition {
+
+    /**
+       Upper bound of probing evaluations during compilation; conditions
+       requiring more are not compiled.
+    */
+    static public final int MAXIMUM_EVALUATIONS = 4096;
+
+    /**
+       Upper bound of distinct sub state variables in a compiled condition
+    */
+    static public final int MAXIMUM_PATHS = 64;
+
+    static protected class Node {
+        protected Node(int slot, Node[] children, boolean result) {
+            this.slot     = slot;
+            this.children = children;
+            this.result   = result;
+        }
+        protected final int     slot;
+        protected final Node[]  children;
+        protected final boolean result;
+    }
+
+    static protected final Node TRUE  = new Node(-1, null, true);
+    static protected final Node FALSE = new Node(-1, null, false);
+
+    protected StateComplexCondition condition;
+    protected StateComplex.Specification specification;
+    protected Node root;
+
+    protected StatePath[] paths;
+    protected StateComplex.Specification[] path_specifications;
+    protected boolean needs_prototype;
+
+    public StateComplexConditionCompiled (CallContext context, StateComplexCondition condition, StateComplex.Specification specification) {
+        this(context, condition, specification, null);
+    }
+
+    /**
+       Compiles the condition for states with the given specification; sub
+       state variables are resolved in the prototype, which may be null.
+    */
+    public StateComplexConditionCompiled (CallContext context, StateComplexCondition condition, StateComplex.Specification specification, StateComplex prototype) {
+        this.condition     = condition;
+        this.specification = specification;
+        if (condition.isVolatile(context) == false) {
+            this.compile(context, prototype);
+        }
+    }
+
+    public StateComplexCondition getCondition (CallContext context) {
+        return this.condition;
+    }
+
+    public StateComplex.Specification getSpecification (CallContext context) {
+        return this.specification;
+    }
+
+    /**
+       True if matching states of the bound specification does not need the
+       interpreter.
+    */
+    public boolean isCompiled (CallContext context) {
+        return this.root != null;
+    }
+
+    /**
+       True if the condition refers to sub state variables and was compiled
+       without a prototype (and therefore is interpreted).
+    */
+    public boolean needsPrototype (CallContext context) {
+        return this.needs_prototype;
+    }
+
+    /**
+       True if the decision tree reads sub state variables; such conditions
+       cannot be evaluated on ordinal vectors.
+    */
+    public boolean usesPaths (CallContext context) {
+        return this.paths != null;
+    }
+
+    public String toString() {
+        return "[StateConditionCompiled: '" + this.condition.getCondition(RootContext.getFallbackCallContext()) + "'" + (this.root == null ? " (interpreted)" : "") + "]";
+    }
+
+    public boolean matches(CallContext context, State state) {
+        if (StateMetrics.isEnabled(context)) {
+            long start = System.nanoTime();
+            boolean result = this.doMatches(context, state);
+            StateMetrics.recordMatch(context, this.condition.getCondition(context), System.nanoTime() - start);
+            return result;
+        }
+        return this.doMatches(context, state);
+    }
+
+    protected boolean doMatches(CallContext context, State state) {
+        if (state instanceof StateComplexAtomic) { state = ((StateComplexAtomic) state).get(context); }
+        if (this.root != null && state instanceof StateComplex) {
+            StateComplex sc = (StateComplex) state;
+            if (sc.specification == this.specification) {
+                Node node = this.root;
+                int size = this.specification.getSize(context);
+                while (node.children != null) {
+                    int slot    = node.slot;
+                    int ordinal = slot < size ? sc.getOrdinal(context, slot) : this.paths[slot - size].getOrdinal(context, sc, this.path_specifications[slot - size]);
+                    if (ordinal < 0) { return this.interpret(context, state); }
+                    node = node.children[ordinal];
+                }
+                return node.result;
+            }
+        }
+        return this.interpret(context, state);
+    }
+
+    protected boolean interpret(CallContext context, State state) {
+        if ((state instanceof StateComplex) == false) { return false; }
+        return this.condition.matches(context, state, new StateComplexCondition.StateScope(context));
+    }
+
+    /**
+       Result for the given ordinal vector (indexed by slot); only slots
+       tested by the decision tree are read. The condition must be compiled
+       and must not use paths.
+    */
+    public boolean matches(CallContext context, int[] ordinals) {
+        Node node = this.root;
+        while (node.children != null) {
+            node = node.children[ordinals[node.slot]];
+        }
+        return node.result;
+    }
+
+    /**
+       Slots the result depends on, or null if the condition is not
+       compiled and may depend on anything (including conditions reading sub
+       state variables).
+    */
+    public BitSet getReferencedSlots(CallContext context) {
+        if (this.root == null || this.paths != null) { return null; }
+        BitSet slots = new BitSet();
+        this.collectSlots(context, this.root, slots);
+        return slots;
+    }
+
+    protected void collectSlots(CallContext context, Node node, BitSet slots) {
+        if (node.children == null) { return; }
+        slots.set(node.slot);
+        for (Node child : node.children) {
+            this.collectSlots(context, child, slots);
+        }
+    }
+
+    /**
+       Necessary conditions for a match: element i is the set of ordinals
+       slot i has in every matching state, or null if matching states may
+       have any value in slot i. Returns null if no state of the bound
+       specification matches; if the condition is not compiled or reads sub
+       state variables, nothing is known and all elements are null.
+    */
+    public BitSet[] getRequiredOrdinals(CallContext context) {
+        int size = this.specification.getSize(context);
+        if (this.root == null || this.paths != null) { return new BitSet[size]; }
+        return this.getRequiredOrdinals(context, this.root, size);
+    }
+
+    protected BitSet[] getRequiredOrdinals(CallContext context, Node node, int size) {
+        if (node.children == null) {
+            return node.result ? new BitSet[size] : null;
+        }
+        BitSet[] result = null;
+        BitSet own = new BitSet(node.children.length);
+        for (int o=0; o<node.children.length; o++) {
+            BitSet[] child = this.getRequiredOrdinals(context, node.children[o], size);
+            if (child == null) { continue; }
+            own.set(o);
+            if (result == null) {
+                result = child;
+            } else {
+                for (int i=0; i<size; i++) {
+                    if (result[i] != null) {
+                        if (child[i] == null) {
+                            result[i] = null;
+                        } else {
+                            result[i].or(child[i]);
+                        }
+                    }
+                }
+            }
+        }
+        if (result != null) { result[node.slot] = own; }
+        return result;
+    }
+
+    protected void compile(CallContext context, StateComplex prototype) {
+        com.sphenon.basics.expression.parsed.Expression expression = this.condition.getExpression(context);
+        Probe probe = new Probe(context, prototype);
+        int[] assignment = new int[probe.size + (prototype == null ? 0 : MAXIMUM_PATHS)];
+        for (int i=0; i<assignment.length; i++) { assignment[i] = -1; }
+        this.root = this.build(context, expression, probe, assignment);
+        if (this.root == null) {
+            this.needs_prototype = (probe.uses_paths && prototype == null);
+        } else if (probe.path_count != 0) {
+            this.paths               = Arrays.copyOf(probe.paths, probe.path_count);
+            this.path_specifications = Arrays.copyOf(probe.path_specifications, probe.path_count);
+        }
+    }
+
+    protected Node build(CallContext context, com.sphenon.basics.expression.parsed.Expression expression, Probe probe, int[] assignment) {
+        if (++probe.evaluations > MAXIMUM_EVALUATIONS) { return null; }
+
+        probe.assignment = assignment;
+        probe.pending    = -1;
+        boolean result   = false;
+        try {
+            result = expression.isTrue(context, probe);
+        } catch (EvaluationFailure ef) {
+            if (probe.pending == -1) { return null; }
+        }
+        if (probe.uncompilable) { return null; }
+        if (probe.pending == -1) { return result ? TRUE : FALSE; }
+
+        int slot = probe.pending;
+        Node[] children = new Node[probe.getOrdinalCount(context, slot) + 1];
+        for (int o=0; o<children.length; o++) {
+            assignment[slot] = o;
+            children[o] = this.build(context, expression, probe, assignment);
+            if (children[o] == null) { return null; }
+        }
+        assignment[slot] = -1;
+        return new Node(slot, children, false);
+    }
+
+    /**
+       Scope presenting a partial assignment of ordinals to the expression.
+       The first unassigned variable requested is recorded as pending, the
+       result of such an evaluation is discarded.
+    */
+    protected class Probe extends Class_Scope {
+        public Probe (CallContext context, StateComplex prototype) {
+            super(context);
+            this.prototype = prototype;
+            this.size      = specification.getSize(context);
+            if (prototype != null) {
+                this.paths               = new StatePath[MAXIMUM_PATHS];
+                this.path_specifications = new StateComplex.Specification[MAXIMUM_PATHS];
+                this.path_slots          = new int[MAXIMUM_PATHS];
+            }
+        }
+
+        protected int[]   assignment;
+        protected int     pending;
+        protected int     evaluations;
+        protected boolean uncompilable;
+        protected boolean uses_paths;
+
+        protected StateComplex prototype;
+        protected int          size;
+        protected StatePath[]  paths;
+        protected StateComplex.Specification[] path_specifications;
+        protected int[]        path_slots;
+        protected int          path_count;
+
+        protected int getOrdinalCount(CallContext context, int slot) {
+            return slot < this.size ? specification.getOrdinalCount(context, slot) : this.path_specifications[slot - this.size].getOrdinalCount(context, this.path_slots[slot - this.size]);
+        }
+
+        protected String getValue(CallContext context, int slot) {
+            if (this.resolve(context, slot) == false) { return null; }
+            return slot < this.size ? specification.getValue(context, slot, this.assignment[slot]) : this.path_specifications[slot - this.size].getValue(context, this.path_slots[slot - this.size], this.assignment[slot]);
+        }
+
+        /**
+           Virtual slot of the sub state variable, or -1 if it cannot be
+           compiled
+        */
+        protected int slotOfPath(CallContext context, String name) {
+            this.uses_paths = true;
+            if (this.prototype == null) { return -1; }
+            for (int p=0; p<this.path_count; p++) {
+                if (this.paths[p].getPath(context).equals(name)) { return this.size + p; }
+            }
+            if (this.path_count == MAXIMUM_PATHS) { return -1; }
+            StatePath path = condition.getPath(context, name);
+            State parent = path.getParent(context, this.prototype);
+            if ((parent instanceof StateComplex) == false) { return -1; }
+            int slot = path.getSlot(context, parent);
+            if (slot == -1) { return -1; }
+            this.paths[this.path_count]               = path;
+            this.path_specifications[this.path_count] = ((StateComplex) parent).specification;
+            this.path_slots[this.path_count]          = slot;
+            return this.size + this.path_count++;
+        }
+
+        protected boolean resolve(CallContext context, int slot) {
+            if (this.getOrdinalCount(context, slot) < 0) {
+                this.uncompilable = true;
+                return false;
+            }
+            if (this.assignment[slot] == -1) {
+                if (this.pending == -1) { this.pending = slot; }
+                return false;
+            }
+            return true;
+        }
+
+        protected Result doGetVariable (CallContext context, String name, String search_name_space) {
+            if (search_name_space == null || search_name_space.isEmpty()) {
+                int slot = specification.slotOf(context, "main");
+                String value = (slot == -1 ? null : this.getValue(context, slot));
+                return new Result(Boolean.valueOf(name.equals(value)));
+            } else if (search_name_space.equals("LHS")) {
+                int slot;
+                if (name.indexOf('.') != -1) {
+                    slot = this.slotOfPath(context, name);
+                    if (slot == -1) {
+                        this.uncompilable = true;
+                        return new Result(null);
+                    }
+                } else {
+                    slot = specification.slotOf(context, name);
+                }
+                String value = (slot == -1 ? null : this.getValue(context, slot));
+                return new Result(value);
+            } else if (search_name_space.equals("RHS")) {
+                return new Result(name);
+            } else {
+                return null;
+            }
+        }
+
+        public Vector<Variable> getAllVariables(CallContext context, String pattern) {
+            this.uncompilable = true;
+            return new Vector<Variable>();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.sphenon.basics.state.classes;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+
+import com.sphenon.basics.state.*;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+   Wraps a StateComplexCondition and remembers its results per state
+   fingerprint (see {@link State#getFingerprint}).
+
+   Results are kept in a direct mapped table of fixed size of immutable
+   entries, so the table can be read and written without locks. A
+   fingerprint does not identify a state, so each entry also holds the
+   ordinals of the state or, if the specification has variables without
+   declared values or the state has sub states, an unshared copy of the
+   state; hits are verified against these. A colliding state simply
+   replaces the entry.
+
+   Only complex states of the specification seen first are memoized. The
+   cache is bypassed for volatile conditions and, permanently, as soon as
+   the condition has queried variables by pattern.
+*/
+public class StateComplexConditionMemoizing implements StateCondition {
+
+    static protected class Entry {
+        protected Entry (long fingerprint, int[] ordinals, StateComplex state, boolean result) {
+            this.fingerprint = fingerprint;
+            this.ordinals    = ordinals;
+            this.state       = state;
+            this.result      = result;
+        }
+        protected final long         fingerprint;
+        protected final int[]        ordinals;
+        protected final StateComplex state;
+        protected final boolean      result;
+    }
+
+    public StateComplexConditionMemoizing (CallContext context, StateComplexCondition condition) {
+        this(context, condition, 4096);
+    }
+
+    /**
+       @param size Number of entries, rounded up to a power of two
+    */
+    public StateComplexConditionMemoizing (CallContext context, StateComplexCondition condition, int size) {
+        int capacity = 1;
+        while (capacity < size) { capacity <<= 1; }
+        this.condition = condition;
+        this.entries   = new AtomicReferenceArray<Entry>(capacity);
+        this.mask      = capacity - 1;
+        this.hits      = new LongAdder();
+        this.misses    = new LongAdder();
+        this.evictions = new LongAdder();
+        this.bypasses  = new LongAdder();
+    }
+
+    protected StateComplexCondition condition;
+    protected AtomicReferenceArray<Entry> entries;
+    protected int mask;
+    protected volatile StateComplex.Specification specification;
+    protected volatile boolean declared;
+    protected LongAdder hits;
+    protected LongAdder misses;
+    protected LongAdder evictions;
+    protected LongAdder bypasses;
+
+    public StateComplexCondition getCondition (CallContext context) {
+        return this.condition;
+    }
+
+    public long getHits (CallContext context) {
+        return this.hits.sum();
+    }
+
+    public long getMisses (CallContext context) {
+        return this.misses.sum();
+    }
+
+    public long getEvictions (CallContext context) {
+        return this.evictions.sum();
+    }
+
+    public long getBypasses (CallContext context) {
+        return this.bypasses.sum();
+    }
+
+    public void clear (CallContext context) {
+        for (int i=0; i<this.entries.length(); i++) {
+            this.entries.set(i, null);
+        }
+    }
+
+    public String toString() {
+        return "[StateConditionMemoizing: '" + this.condition.getCondition(RootContext.getFallbackCallContext()) + "']";
+    }
+
+    /**
+       True if the entry was recorded for a state equal to the given one
+    */
+    protected boolean isEntryOf (CallContext context, Entry entry, long fingerprint, StateComplex state) {
+        if (entry == null || entry.fingerprint != fingerprint) { return false; }
+        if (entry.ordinals == null) { return entry.state.equals(context, state); }
+        if (state.getSubStates(context) != null) { return false; }
+        for (int slot=0; slot<entry.ordinals.length; slot++) {
+            if (state.getOrdinal(context, slot) != entry.ordinals[slot]) { return false; }
+        }
+        return true;
+    }
+
+    protected Entry createEntry (CallContext context, long fingerprint, StateComplex state, boolean result) {
+        if (this.declared && state.getSubStates(context) == null) {
+            int[] ordinals = new int[this.specification.getSize(context)];
+            for (int slot=0; slot<ordinals.length; slot++) {
+                ordinals[slot] = state.getOrdinal(context, slot);
+            }
+            return new Entry(fingerprint, ordinals, null, result);
+        }
+        return new Entry(fingerprint, null, state instanceof StateComplexSnapshot ? state : state.clone(context), result);
+    }
+
+    public boolean matches(CallContext context, State state) {
+        if (    (state instanceof StateComplex) == false
+             || this.condition.isVolatile(context)
+             || this.condition.usesPatterns(context)) {
+            this.bypasses.increment();
+            return this.condition.matches(context, state);
+        }
+        StateComplex complex = (state instanceof StateComplexAtomic) ? ((StateComplexAtomic) state).get(context) : (StateComplex) state;
+        StateComplex.Specification specification = complex.getSpecification(context);
+        if (specification == null) {
+            this.bypasses.increment();
+            return this.condition.matches(context, complex);
+        }
+        if (this.specification != specification) {
+            synchronized (this) {
+                if (this.specification == null) {
+                    boolean declared = true;
+                    for (int slot=0; declared && slot<specification.getSize(context); slot++) {
+                        declared = (specification.getOrdinalCount(context, slot) >= 0);
+                    }
+                    this.declared      = declared;
+                    this.specification = specification;
+                }
+            }
+            if (this.specification != specification) {
+                this.bypasses.increment();
+                return this.condition.matches(context, complex);
+            }
+        }
+
+        long  fingerprint = complex.getFingerprint(context);
+        int   index = StateFingerprint.hashCode(fingerprint) & this.mask;
+        Entry entry = this.entries.get(index);
+        if (this.isEntryOf(context, entry, fingerprint, complex)) {
+            this.hits.increment();
+            return entry.result;
+        }
+
+        this.misses.increment();
+        boolean result = this.condition.matches(context, complex);
+        if (this.condition.usesPatterns(context) == false) {
+            if (entry != null) { this.evictions.increment(); }
+            this.entries.set(index, this.createEntry(context, fingerprint, complex, result));
+        }
+        return result;
+    }
+}
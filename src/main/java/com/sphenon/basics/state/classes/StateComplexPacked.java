@@ -0,0 +1,155 @@
+package com.sphenon.basics.state.classes;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.exception.*;
+
+import com.sphenon.basics.state.*;
+
+/**
+   Compact StateComplex for specifications where all variables declare
+   their valid values.
+
+   Instead of value and description arrays, the ordinal of each variable
+   (see {@link StateComplex.Specification#getOrdinal}) is packed into two
+   long words according to {@link StateComplex.Specification#getBitOffsets}.
+   Getters return the shared value and description instances of the
+   specification; {@link #getValues(CallContext)} and
+   {@link #getDescriptions(CallContext)} return fresh copies, modifying them
+   does not affect the state.
+*/
+public class StateComplexPacked extends StateComplex {
+
+    public StateComplexPacked (CallContext context, String[] variables, String[] values) {
+        this(context, StateSpecificationRegistry.get(context).getSpecification(context, variables, values), values);
+    }
+
+    public StateComplexPacked (CallContext context, Specification specification, String[] values) {
+        this(context, specification, values, null, null);
+    }
+
+    public StateComplexPacked (CallContext context, Specification specification, String[] values, String[] sub_state_variables, State[] sub_states) {
+        super(context, specification, values, sub_state_variables, sub_states);
+    }
+
+    protected StateComplexPacked (CallContext context, Specification specification, long word0, long word1, String[] sub_state_variables, State[] sub_states) {
+        super(context, specification, sub_state_variables, sub_states);
+        this.word0 = word0;
+        this.word1 = word1;
+        this.invalidate(context);
+    }
+
+    protected StateComplexPacked (CallContext context, StateComplexPacked original, State[] sub_states) {
+        super(context, original.specification, original.sub_state_variables, sub_states);
+        this.word0              = original.word0;
+        this.word1              = original.word1;
+        this.values_fingerprint = original.values_fingerprint;
+    }
+
+    /**
+       Like {@link StateComplex#create}, but packed
+    */
+    static public StateComplexPacked create(CallContext context, String all_in_one) {
+        int hash = all_in_one.indexOf('#');
+        String[] values = (hash == -1 || hash == all_in_one.length() - 1) ? null : all_in_one.substring(hash + 1).split(";");
+        return new StateComplexPacked(context, StateSpecificationRegistry.get(context).getSpecification(context, hash == -1 ? all_in_one : all_in_one.substring(0, hash), values), values);
+    }
+
+    protected long word0;
+    protected long word1;
+
+    public long getWord0 (CallContext context) {
+        return this.word0;
+    }
+
+    public long getWord1 (CallContext context) {
+        return this.word1;
+    }
+
+    protected void allocate (CallContext context) {
+        if (this.specification.isPackable(context) == false) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot create packed complex state, not all variables declare valid values or they need more than 128 bits");
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+    }
+
+    public int getOrdinal (CallContext context, int slot) {
+        int offset = this.specification.bit_offsets[slot];
+        long word  = offset < 64 ? this.word0 : this.word1;
+        return (int) ((word >>> (offset & 63)) & ((1L << this.specification.bit_widths[slot]) - 1));
+    }
+
+    protected void store (CallContext context, int slot, String value, String description, int ordinal) {
+        int  offset = this.specification.bit_offsets[slot];
+        long mask   = ((1L << this.specification.bit_widths[slot]) - 1) << (offset & 63);
+        long bits   = (((long) ordinal) << (offset & 63)) & mask;
+        if (offset < 64) {
+            this.word0 = (this.word0 & ~mask) | bits;
+        } else {
+            this.word1 = (this.word1 & ~mask) | bits;
+        }
+    }
+
+    public String getValue (CallContext context, int slot) {
+        return this.specification.getValue(context, slot, this.getOrdinal(context, slot));
+    }
+
+    public String getDescription (CallContext context, int slot) {
+        return this.specification.getValueDescription(context, slot, this.getOrdinal(context, slot));
+    }
+
+    public String[] getValues (CallContext context) {
+        String[] values = new String[this.variables.length];
+        for (int i=0; i<values.length; i++) {
+            values[i] = this.getValue(context, i);
+        }
+        return values;
+    }
+
+    public String[] getDescriptions (CallContext context) {
+        String[] descriptions = new String[this.variables.length];
+        for (int i=0; i<descriptions.length; i++) {
+            descriptions[i] = this.getDescription(context, i);
+        }
+        return descriptions;
+    }
+
+    /**
+       Id and description are not kept, they would outweigh the packed values
+    */
+    protected boolean cachesIds(CallContext context) {
+        return false;
+    }
+
+    public StateComplexPacked clone(CallContext context) {
+        return new StateComplexPacked(context, this, this.cloneSubStates(context));
+    }
+
+    public boolean equals(CallContext context, State o) {
+        if (o instanceof StateComplexPacked) {
+            StateComplexPacked other = (StateComplexPacked) o;
+            if (other.specification == this.specification) {
+                if (other.word0 != this.word0 || other.word1 != this.word1) { return false; }
+                if (this.sub_states == null && other.sub_states == null) { return true; }
+            }
+        }
+        return super.equals(context, o);
+    }
+}
@@ -0,0 +1,167 @@
+package com.sphenon.basics.state.classes;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.exception.*;
+
+import com.sphenon.basics.state.*;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+   Interning pool of {@link StateComplexSnapshot}s for one specification.
+
+   The pool holds its snapshots weakly, snapshots no longer referenced
+   elsewhere are collected and their entries removed. It may be used
+   concurrently.
+*/
+public class StateComplexPool {
+
+    /**
+       Returns the pool of the given specification, creating it on first use
+    */
+    static public StateComplexPool get (CallContext context, StateComplex.Specification specification) {
+        StateComplexPool pool = specification.snapshot_pool;
+        if (pool == null) {
+            synchronized (specification) {
+                pool = specification.snapshot_pool;
+                if (pool == null) {
+                    pool = new StateComplexPool(context, specification);
+                    specification.snapshot_pool = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    protected StateComplexPool (CallContext context, StateComplex.Specification specification) {
+        this.specification = specification;
+        this.snapshots     = new ConcurrentHashMap<Key,SnapshotReference>();
+        this.queue         = new ReferenceQueue<StateComplexSnapshot>();
+    }
+
+    protected final StateComplex.Specification specification;
+
+    public StateComplex.Specification getSpecification (CallContext context) {
+        return this.specification;
+    }
+
+    static protected class Key {
+        protected Key (String[] values, long fingerprint) {
+            this.values      = values;
+            this.fingerprint = fingerprint;
+        }
+        protected final String[] values;
+        protected final long     fingerprint;
+
+        public int hashCode() {
+            return StateFingerprint.hashCode(this.fingerprint);
+        }
+
+        public boolean equals(Object o) {
+            if ((o instanceof Key) == false) { return false; }
+            Key other = (Key) o;
+            if (other.fingerprint != this.fingerprint) { return false; }
+            for (int i=0; i<this.values.length; i++) {
+                String v1 = this.values[i];
+                String v2 = other.values[i];
+                if (v1 != v2 && (v1 == null || v1.equals(v2) == false)) { return false; }
+            }
+            return true;
+        }
+    }
+
+    static protected class SnapshotReference extends WeakReference<StateComplexSnapshot> {
+        protected SnapshotReference (StateComplexSnapshot snapshot, Key key, ReferenceQueue<StateComplexSnapshot> queue) {
+            super(snapshot, queue);
+            this.key = key;
+        }
+        protected final Key key;
+    }
+
+    protected final ConcurrentHashMap<Key,SnapshotReference> snapshots;
+    protected final ReferenceQueue<StateComplexSnapshot> queue;
+
+    /**
+       Number of entries, including ones whose snapshots have been
+       collected but not yet removed
+    */
+    public int getSize (CallContext context) {
+        this.expunge(context);
+        return this.snapshots.size();
+    }
+
+    /**
+       Returns the canonical snapshot with the values of the given state;
+       the state must belong to this pool's specification and must not
+       have sub states.
+    */
+    public StateComplexSnapshot intern (CallContext context, StateComplex state) {
+        if (state instanceof StateComplexSnapshot && ((StateComplexSnapshot) state).pool == this) {
+            return (StateComplexSnapshot) state;
+        }
+        if (state.getSpecification(context) != this.specification) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot intern complex state '%(id)', it has a different specification", "id", state.getId(context));
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        if (state.getSubStates(context) != null && state.getSubStates(context).length != 0) {
+            CustomaryContext.create((Context)context).throwLimitation(context, "Cannot intern complex state with sub states");
+            throw (ExceptionLimitation) null; // compiler insists
+        }
+        String[] values = new String[this.specification.getSize(context)];
+        long fingerprint = 0L;
+        for (int i=0; i<values.length; i++) {
+            values[i] = state.getValue(context, i);
+            fingerprint ^= StateFingerprint.of(i, values[i]);
+        }
+        return this.intern(context, values, fingerprint);
+    }
+
+    /**
+       Values must be validated and are owned by the pool afterwards
+    */
+    protected StateComplexSnapshot intern (CallContext context, String[] values, long fingerprint) {
+        this.expunge(context);
+        Key key = new Key(values, fingerprint);
+        while (true) {
+            SnapshotReference reference = this.snapshots.get(key);
+            if (reference != null) {
+                StateComplexSnapshot existing = reference.get();
+                if (existing != null) { return existing; }
+                this.snapshots.remove(key, reference);
+            }
+            StateComplexSnapshot snapshot = new StateComplexSnapshot(context, this, values, fingerprint);
+            if (this.snapshots.putIfAbsent(key, new SnapshotReference(snapshot, key, this.queue)) == null) {
+                return snapshot;
+            }
+        }
+    }
+
+    protected void expunge (CallContext context) {
+        Reference<? extends StateComplexSnapshot> reference;
+        while ((reference = this.queue.poll()) != null) {
+            SnapshotReference sr = (SnapshotReference) reference;
+            this.snapshots.remove(sr.key, sr);
+        }
+    }
+}
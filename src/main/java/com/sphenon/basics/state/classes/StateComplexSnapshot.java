@@ -0,0 +1,169 @@
+package com.sphenon.basics.state.classes;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.exception.*;
+
+import com.sphenon.basics.state.*;
+
+/**
+   Immutable complex state without sub states, obtained from a
+   {@link StateComplexPool}. For a given specification there is at most one
+   reachable snapshot per value vector, so snapshots can be compared by
+   identity. Transitions via {@link #with} return the canonical target.
+
+   All modifying methods throw a PreConditionViolation; {@link #clone}
+   returns a modifiable StateComplex, {@link #getValues(CallContext)} and
+   {@link #getDescriptions(CallContext)} return copies.
+*/
+public class StateComplexSnapshot extends StateComplex {
+
+    protected StateComplexSnapshot (CallContext context, StateComplexPool pool, String[] values, long values_fingerprint) {
+        super(context, pool.getSpecification(context), null, null);
+        this.pool               = pool;
+        this.values             = values;
+        this.values_fingerprint = values_fingerprint;
+        for (int i=0; i<values.length; i++) {
+            int ordinal = this.specification.getOrdinal(context, i, values[i]);
+            if (ordinal > 0) {
+                this.descriptions[i] = this.specification.getValueDescription(context, i, ordinal);
+            }
+        }
+        this.shared = true; // clones never need to mark it, see StateComplex(context, original, sub_states)
+        this.frozen = true;
+    }
+
+    protected StateComplexPool pool;
+    protected boolean frozen;
+
+    public StateComplexPool getPool (CallContext context) {
+        return this.pool;
+    }
+
+    /**
+       Returns the canonical snapshot with the given variable changed
+    */
+    public StateComplexSnapshot with (CallContext context, String variable, String value) {
+        int slot = this.specification.slotOf(context, variable);
+        if (slot == -1) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot set variable '%(variable)' to '%(value)' in complex state '%(id)' (no such variable)", "variable", variable, "value", value, "id", this.getId(context));
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        return this.with(context, slot, value);
+    }
+
+    /**
+       Returns the canonical snapshot with the given slot changed
+    */
+    public StateComplexSnapshot with (CallContext context, int slot, String value) {
+        value = this.canonical(context, slot, value);
+        String current = this.values[slot];
+        if (current == null ? value == null : current.equals(value)) { return this; }
+        String[] values = this.values.clone();
+        values[slot] = value;
+        return this.pool.intern(context, values, this.values_fingerprint ^ StateFingerprint.of(slot, current) ^ StateFingerprint.of(slot, value));
+    }
+
+    /**
+       Returns the canonical snapshot with all the given slots changed at
+       once, without interning intermediate snapshots
+    */
+    public StateComplexSnapshot with (CallContext context, int[] slots, String[] values) {
+        String[] result = null;
+        long fingerprint = this.values_fingerprint;
+        for (int i=0; i<slots.length; i++) {
+            int slot = slots[i];
+            String value   = this.canonical(context, slot, values[i]);
+            String current = (result == null ? this.values : result)[slot];
+            if (current == null ? value == null : current.equals(value)) { continue; }
+            if (result == null) { result = this.values.clone(); }
+            result[slot] = value;
+            fingerprint ^= StateFingerprint.of(slot, current) ^ StateFingerprint.of(slot, value);
+        }
+        return result == null ? this : this.pool.intern(context, result, fingerprint);
+    }
+
+    /**
+       Validates the value and returns the declared instance, if any
+    */
+    protected String canonical (CallContext context, int slot, String value) {
+        if (this.valid_values != null && this.valid_values[slot] != null) {
+            int ordinal = (value == null ? -1 : this.specification.getOrdinal(context, slot, value));
+            if (ordinal <= 0) {
+                if (StateMetrics.isEnabled(context)) { StateMetrics.recordValidationFailure(context); }
+                CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot set variable '%(variable)' to '%(value)' in complex state '%(id)' (invalid value)", "variable", this.variables[slot], "value", value, "id", this.getId(context));
+                throw (ExceptionPreConditionViolation) null; // compiler insists
+            }
+            return this.specification.getValue(context, slot, ordinal);
+        }
+        return value;
+    }
+
+    protected void checkModifiable (CallContext context) {
+        if (this.frozen) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot modify complex state snapshot '%(id)'", "id", this.getId(context));
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+    }
+
+    protected void setValue (CallContext context, String variable, String value, int i) {
+        this.checkModifiable(context);
+        super.setValue(context, variable, value, i);
+    }
+
+    public void setOrdinal (CallContext context, int slot, int ordinal) {
+        this.checkModifiable(context);
+        super.setOrdinal(context, slot, ordinal);
+    }
+
+    public StateComplex setSubStates(CallContext context, Object... arguments) {
+        this.checkModifiable(context);
+        return super.setSubStates(context, arguments);
+    }
+
+    public String[] getValues (CallContext context) {
+        return this.values.clone();
+    }
+
+    public String[] getDescriptions (CallContext context) {
+        return this.descriptions.clone();
+    }
+
+    /**
+       Id and description are not kept, they would outweigh the shared values
+    */
+    protected boolean cachesIds(CallContext context) {
+        return false;
+    }
+
+    public StateComplex snapshot (CallContext context) {
+        return this;
+    }
+
+    public StateComplex clone(CallContext context) {
+        return new StateComplex(context, this, null);
+    }
+
+    public boolean equals(CallContext context, State o) {
+        if (o == this) { return true; }
+        if (o instanceof StateComplexSnapshot && ((StateComplexSnapshot) o).pool == this.pool) { return false; }
+        return super.equals(context, o);
+    }
+}
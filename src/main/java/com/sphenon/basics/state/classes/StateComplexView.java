@@ -0,0 +1,87 @@
+package com.sphenon.basics.state.classes;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.exception.*;
+
+import com.sphenon.basics.state.*;
+
+/**
+   Complex state without storage of its own, reading and writing the
+   ordinals of its variables in place in some external storage (see
+   {@link StateTable.Row} and {@link StateStore.View}).
+
+   Since the storage may be changed via other views, id, description and
+   fingerprint are computed on each call. Views have no sub states.
+*/
+abstract public class StateComplexView extends StateComplex {
+
+    protected StateComplexView (CallContext context, Specification specification) {
+        super(context, specification, null, null);
+    }
+
+    protected void allocate (CallContext context) {
+    }
+
+    abstract public int getOrdinal (CallContext context, int slot);
+
+    abstract protected void store (CallContext context, int slot, String value, String description, int ordinal);
+
+    public String getValue (CallContext context, int slot) {
+        return this.specification.getValue(context, slot, this.getOrdinal(context, slot));
+    }
+
+    public String getDescription (CallContext context, int slot) {
+        return this.specification.getValueDescription(context, slot, this.getOrdinal(context, slot));
+    }
+
+    public String[] getValues (CallContext context) {
+        String[] values = new String[this.variables.length];
+        for (int i=0; i<values.length; i++) {
+            values[i] = this.getValue(context, i);
+        }
+        return values;
+    }
+
+    public String[] getDescriptions (CallContext context) {
+        String[] descriptions = new String[this.variables.length];
+        for (int i=0; i<descriptions.length; i++) {
+            descriptions[i] = this.getDescription(context, i);
+        }
+        return descriptions;
+    }
+
+    protected boolean isCacheable (CallContext context) {
+        return false;
+    }
+
+    public long getFingerprint (CallContext context) {
+        long fingerprint = 0L;
+        for (int i=0; i<this.variables.length; i++) {
+            fingerprint ^= StateFingerprint.of(i, this.getValue(context, i));
+        }
+        return fingerprint;
+    }
+
+    public StateComplex setSubStates(CallContext context, Object... arguments) {
+        CustomaryContext.create((Context)context).throwLimitation(context, "Cannot set sub states of state view '%(id)'", "id", this.getId(context));
+        throw (ExceptionLimitation) null; // compiler insists
+    }
+}
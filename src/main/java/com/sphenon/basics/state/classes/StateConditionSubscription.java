@@ -0,0 +1,211 @@
+package com.sphenon.basics.state.classes;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.expression.*;
+
+import com.sphenon.basics.state.*;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Vector;
+
+/**
+   Keeps track of the truth value of a condition for one complex state and
+   reports when it flips.
+
+   The condition is re-evaluated only if a variable it references changes.
+   For compiled conditions these are the slots tested anywhere in the
+   decision tree. Otherwise the slots read during the last evaluation are
+   recorded, which suffices since the result cannot change unless one of
+   them does. Conditions reading sub state variables are re-evaluated on
+   any change of the state or its complex sub states, conditions using
+   patterns and volatile conditions on any change of the state.
+
+   Evaluation happens synchronously in the modifying thread; subscriptions
+   are not thread safe for concurrently modified states.
+*/
+public class StateConditionSubscription implements StateChangeListener {
+
+    public interface Listener {
+        public void conditionChanged(CallContext context, StateConditionSubscription subscription, boolean value);
+    }
+
+    static public StateConditionSubscription subscribe (CallContext context, StateComplex state, String condition, Listener listener) {
+        return new StateConditionSubscription(context, state, StateComplexConditionCache.get(context).getCondition(context, condition), listener);
+    }
+
+    public StateConditionSubscription (CallContext context, StateComplex state, StateComplexCondition condition, Listener listener) {
+        this.state     = state;
+        this.condition = condition;
+        this.listener  = listener;
+        if (condition.isVolatile(context) == false) {
+            StateComplexConditionCompiled compiled = condition.compile(context, state.getSpecification(context));
+            if (compiled.isCompiled(context)) {
+                this.compiled   = compiled;
+                this.referenced = compiled.getReferencedSlots(context);
+            }
+        }
+        if (this.compiled == null) {
+            this.scope      = new TrackingScope(context);
+            this.referenced = new BitSet();
+        }
+        state.addStateChangeListener(context, this);
+        this.value = this.evaluate(context);
+    }
+
+    protected StateComplex state;
+    protected StateComplexCondition condition;
+    protected StateComplexConditionCompiled compiled;
+    protected Listener listener;
+    protected TrackingScope scope;
+    protected BitSet referenced;
+    protected boolean reads_sub_states;
+    protected boolean uses_patterns;
+    protected List<StateComplex> watched;
+    protected boolean value;
+    protected long evaluations;
+
+    public StateComplexCondition getCondition (CallContext context) {
+        return this.condition;
+    }
+
+    public StateComplex getState (CallContext context) {
+        return this.state;
+    }
+
+    /**
+       Current truth value of the condition
+    */
+    public boolean getValue (CallContext context) {
+        return this.value;
+    }
+
+    public long getEvaluations (CallContext context) {
+        return this.evaluations;
+    }
+
+    public void cancel (CallContext context) {
+        this.state.removeStateChangeListener(context, this);
+        this.unwatchSubStates(context);
+    }
+
+    protected boolean evaluate (CallContext context) {
+        this.evaluations++;
+        if (this.compiled != null) {
+            return this.compiled.matches(context, this.state);
+        }
+        this.referenced.clear();
+        this.reads_sub_states = false;
+        this.uses_patterns    = false;
+        boolean value = this.condition.matches(context, this.state, this.scope);
+        if (this.reads_sub_states != (this.watched != null)) {
+            this.unwatchSubStates(context);
+            this.watchSubStates(context);
+        }
+        return value;
+    }
+
+    public void stateChanged (CallContext context, StateChangeEvent event) {
+        // a volatile condition may read other variables after its text changed
+        boolean affected = this.uses_patterns || this.reads_sub_states || this.condition.isVolatile(context);
+        if (event.getSubStatesChanged(context) && this.watched != null) {
+            this.unwatchSubStates(context);
+            this.watchSubStates(context);
+        }
+        if (affected == false && event.getSource(context) == this.state) {
+            StateComplex.Specification specification = this.state.getSpecification(context);
+            for (String variable : event.getVariables(context)) {
+                int slot = specification.slotOf(context, variable);
+                if (slot != -1 && this.referenced.get(slot)) {
+                    affected = true;
+                    break;
+                }
+            }
+        }
+        if (affected == false) { return; }
+        boolean value = this.evaluate(context);
+        if (value != this.value) {
+            this.value = value;
+            this.listener.conditionChanged(context, this, value);
+        }
+    }
+
+    protected void watchSubStates (CallContext context) {
+        if (this.reads_sub_states == false) { return; }
+        this.watched = new ArrayList<StateComplex>();
+        this.watchSubStates(context, this.state);
+    }
+
+    protected void watchSubStates (CallContext context, StateComplex parent) {
+        State[] sub_states = parent.getSubStates(context);
+        if (sub_states == null) { return; }
+        for (State sub_state : sub_states) {
+            if (sub_state instanceof StateComplex && this.watched.contains(sub_state) == false) {
+                StateComplex complex = (StateComplex) sub_state;
+                complex.addStateChangeListener(context, this);
+                this.watched.add(complex);
+                this.watchSubStates(context, complex);
+            }
+        }
+    }
+
+    protected void unwatchSubStates (CallContext context) {
+        if (this.watched == null) { return; }
+        for (StateComplex sub_state : this.watched) {
+            sub_state.removeStateChangeListener(context, this);
+        }
+        this.watched = null;
+    }
+
+    /**
+       Scope recording the slots, sub state and pattern lookups of an
+       evaluation
+    */
+    protected class TrackingScope extends StateComplexCondition.StateScope {
+        public TrackingScope (CallContext context) {
+            super(context);
+        }
+
+        protected void record (CallContext context, String name) {
+            if (name.indexOf('.') != -1) {
+                reads_sub_states = true;
+                return;
+            }
+            int slot = state.getSpecification(context).slotOf(context, name);
+            if (slot != -1) { referenced.set(slot); }
+        }
+
+        protected Result doGetVariable (CallContext context, String name, String search_name_space) {
+            if (search_name_space == null || search_name_space.isEmpty()) {
+                this.record(context, "main");
+            } else if (search_name_space.equals("LHS")) {
+                this.record(context, name);
+            }
+            return super.doGetVariable(context, name, search_name_space);
+        }
+
+        public Vector<Variable> getAllVariables(CallContext context, String pattern) {
+            uses_patterns = true;
+            return super.getAllVariables(context, pattern);
+        }
+    }
+}
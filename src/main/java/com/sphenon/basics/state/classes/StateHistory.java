@@ -0,0 +1,368 @@
+package com.sphenon.basics.state.classes;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.exception.*;
+import com.sphenon.basics.configuration.*;
+
+import com.sphenon.basics.state.*;
+
+import java.util.Arrays;
+
+/**
+   Bounded history of the versions of one complex state, for undo and
+   auditing.
+
+   Versions are numbered consecutively, starting with 0 for the initial
+   state. Each version is stored as the delta to its predecessor, a list
+   of (slot, old ordinal, new ordinal) transitions, so committing a
+   version costs time and memory proportional to the change. Besides the
+   deltas, the ordinals of the oldest retained and of the current version
+   are kept; any retained version is materialized from the nearer of
+   both. When more versions than the retention are committed, the oldest
+   delta is folded into the oldest ordinals.
+
+   The retention is read from the configuration property
+   "com.sphenon.basics.state.HistoryRetention" unless given explicitly.
+   The specification must declare values for all variables; sub states
+   are not recorded.
+*/
+public class StateHistory implements StateChangeListener {
+
+    static protected Configuration config;
+    static { config = Configuration.create(RootContext.getInitialisationContext(), "com.sphenon.basics.state"); };
+
+    static protected final int[] NO_CHANGES = new int[0];
+
+    /**
+       History starting with the initial values of the specification
+    */
+    public StateHistory (CallContext context, StateComplex.Specification specification) {
+        this(context, specification, null, config.get(context, "HistoryRetention", 64));
+    }
+
+    /**
+       History starting with the current values of the state
+    */
+    public StateHistory (CallContext context, StateComplex initial, int retention) {
+        this(context, initial.getSpecification(context), initial, retention);
+    }
+
+    protected StateHistory (CallContext context, StateComplex.Specification specification, StateComplex initial, int retention) {
+        int size = specification.getSize(context);
+        for (int i=0; i<size; i++) {
+            if (specification.getOrdinalCount(context, i) < 0) {
+                CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot record history of states, variable '%(variable)' has no declared values", "variable", specification.getVariable(context, i));
+                throw (ExceptionPreConditionViolation) null; // compiler insists
+            }
+        }
+        this.specification = specification;
+        this.current_ordinals = new int[size];
+        for (int i=0; i<size; i++) {
+            if (initial != null) {
+                this.current_ordinals[i] = initial.getOrdinal(context, i);
+            } else if (specification.getInitialValue(context, i) != null) {
+                this.current_ordinals[i] = specification.getOrdinal(context, i, specification.getInitialValue(context, i));
+            }
+        }
+        this.first_ordinals = this.current_ordinals.clone();
+        this.deltas         = new int[16][];
+        this.times          = new long[16];
+        this.times[0]       = System.currentTimeMillis();
+        this.setRetention(context, retention);
+    }
+
+    protected StateComplex.Specification specification;
+
+    public StateComplex.Specification getSpecification (CallContext context) {
+        return this.specification;
+    }
+
+    protected int[] first_ordinals;
+    protected int[] current_ordinals;
+
+    protected long  first_version;
+    protected long  current_version;
+
+    /**
+       Delta leading to version v and commit time of version v, at index
+       v & (length - 1); the length is a power of two
+    */
+    protected int[][] deltas;
+    protected long[]  times;
+
+    public synchronized long getFirstVersion (CallContext context) {
+        return this.first_version;
+    }
+
+    public synchronized long getCurrentVersion (CallContext context) {
+        return this.current_version;
+    }
+
+    protected int retention;
+
+    public synchronized int getRetention (CallContext context) {
+        return this.retention;
+    }
+
+    /**
+       Sets the maximum number of retained versions (including the current
+       one); older versions are dropped immediately
+    */
+    public synchronized void setRetention (CallContext context, int retention) {
+        if (retention < 1) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "History retention must be at least 1, got '%(retention)'", "retention", retention);
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        this.retention = retention;
+        this.trim(context);
+    }
+
+    /**
+       Commit time (milliseconds) of a retained version
+    */
+    public synchronized long getTime (CallContext context, long version) {
+        this.checkVersion(context, version);
+        return this.times[(int) version & (this.times.length - 1)];
+    }
+
+    /**
+       Commits the current values of the state as new version, returns the
+       version number
+    */
+    public synchronized long commit (CallContext context, StateComplex state) {
+        if (state.getSpecification(context) != this.specification) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot commit state '%(id)' to history, it has a different specification", "id", state.getId(context));
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        int count = 0;
+        for (int i=0; i<this.current_ordinals.length; i++) {
+            if (state.getOrdinal(context, i) != this.current_ordinals[i]) { count++; }
+        }
+        int[] delta = count == 0 ? NO_CHANGES : new int[count * 3];
+        for (int i=0, j=0; j<delta.length; i++) {
+            int ordinal = state.getOrdinal(context, i);
+            if (ordinal != this.current_ordinals[i]) {
+                delta[j++] = i;
+                delta[j++] = this.current_ordinals[i];
+                delta[j++] = ordinal;
+            }
+        }
+        return this.append(context, delta);
+    }
+
+    /**
+       Commits a new version differing from the current one in the given
+       slots, returns the version number
+    */
+    public synchronized long commit (CallContext context, int[] slots, int[] ordinals) {
+        for (int k=0; k<slots.length; k++) {
+            int slot = slots[k];
+            if (slot < 0 || slot >= this.current_ordinals.length || ordinals[k] < 0 || ordinals[k] > this.specification.getOrdinalCount(context, slot)) {
+                CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot commit ordinal '%(ordinal)' for slot '%(slot)' to history", "ordinal", ordinals[k], "slot", slot);
+                throw (ExceptionPreConditionViolation) null; // compiler insists
+            }
+        }
+        int[] delta = new int[slots.length * 3];
+        int j = 0;
+        for (int k=0; k<slots.length; k++) {
+            int slot = slots[k];
+            if (ordinals[k] != this.current_ordinals[slot]) {
+                // a slot given twice: both transitions are kept in order, the later one wins
+                delta[j++] = slot;
+                delta[j++] = this.current_ordinals[slot];
+                delta[j++] = ordinals[k];
+                this.current_ordinals[slot] = ordinals[k];
+            }
+        }
+        for (int i=j-3; i>=0; i-=3) { this.current_ordinals[delta[i]] = delta[i + 1]; } // append applies the delta
+        return this.append(context, j == 0 ? NO_CHANGES : j == delta.length ? delta : Arrays.copyOf(delta, j));
+    }
+
+    protected long append (CallContext context, int[] delta) {
+        long version = this.current_version + 1;
+        if (version - this.first_version >= this.deltas.length) {
+            this.grow(context);
+        }
+        int index = (int) version & (this.deltas.length - 1);
+        this.deltas[index] = delta;
+        this.times[index]  = System.currentTimeMillis();
+        for (int j=0; j<delta.length; j+=3) {
+            this.current_ordinals[delta[j]] = delta[j + 2];
+        }
+        this.current_version = version;
+        this.trim(context);
+        return version;
+    }
+
+    protected void grow (CallContext context) {
+        int[][] deltas = new int[this.deltas.length * 2][];
+        long[]  times  = new long[this.times.length * 2];
+        for (long v=this.first_version; v<=this.current_version; v++) {
+            deltas[(int) v & (deltas.length - 1)] = this.deltas[(int) v & (this.deltas.length - 1)];
+            times[(int) v & (times.length - 1)]   = this.times[(int) v & (this.times.length - 1)];
+        }
+        this.deltas = deltas;
+        this.times  = times;
+    }
+
+    protected void trim (CallContext context) {
+        while (this.current_version - this.first_version >= this.retention) {
+            long version = this.first_version + 1;
+            int index = (int) version & (this.deltas.length - 1);
+            int[] delta = this.deltas[index];
+            for (int j=0; j<delta.length; j+=3) {
+                this.first_ordinals[delta[j]] = delta[j + 2];
+            }
+            this.deltas[index] = null;
+            this.first_version = version;
+        }
+    }
+
+    protected void checkVersion (CallContext context, long version) {
+        if (version < this.first_version || version > this.current_version) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Version '%(version)' is not retained in history (retained are '%(first)' to '%(current)')", "version", version, "first", this.first_version, "current", this.current_version);
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+    }
+
+    /**
+       Ordinals of all variables in the given version
+    */
+    public synchronized int[] getOrdinals (CallContext context, long version) {
+        this.checkVersion(context, version);
+        int[] ordinals;
+        if (version - this.first_version <= this.current_version - version) {
+            ordinals = this.first_ordinals.clone();
+            for (long v=this.first_version+1; v<=version; v++) {
+                int[] delta = this.deltas[(int) v & (this.deltas.length - 1)];
+                for (int j=0; j<delta.length; j+=3) { ordinals[delta[j]] = delta[j + 2]; }
+            }
+        } else {
+            ordinals = this.current_ordinals.clone();
+            for (long v=this.current_version; v>version; v--) {
+                int[] delta = this.deltas[(int) v & (this.deltas.length - 1)];
+                for (int j=delta.length-3; j>=0; j-=3) { ordinals[delta[j]] = delta[j + 1]; }
+            }
+        }
+        return ordinals;
+    }
+
+    /**
+       The given version as new complex state (a packed one if the
+       specification is packable)
+    */
+    public StateComplex materialize (CallContext context, long version) {
+        int[] ordinals = this.getOrdinals(context, version);
+        StateComplex state = this.specification.isPackable(context) ? new StateComplexPacked(context, this.specification, (String[]) null)
+                                                                     : new StateComplex(context, this.specification, (String[]) null);
+        for (int i=0; i<ordinals.length; i++) {
+            if (state.getOrdinal(context, i) != ordinals[i]) {
+                state.setOrdinal(context, i, ordinals[i]);
+            }
+        }
+        return state;
+    }
+
+    /**
+       Variables differing between two retained versions, with their values
+       in version from as old and in version to as new values; the source
+       of the event is null
+    */
+    public synchronized StateChangeEvent diff (CallContext context, long from, long to) {
+        this.checkVersion(context, from);
+        this.checkVersion(context, to);
+        long low  = Math.min(from, to);
+        long high = Math.max(from, to);
+        int[] low_ordinals  = new int[this.current_ordinals.length];
+        int[] high_ordinals = new int[this.current_ordinals.length];
+        int[] changed       = new int[this.current_ordinals.length];
+        int count = 0;
+        for (int i=0; i<low_ordinals.length; i++) { low_ordinals[i] = -1; }
+        for (long v=low+1; v<=high; v++) {
+            int[] delta = this.deltas[(int) v & (this.deltas.length - 1)];
+            for (int j=0; j<delta.length; j+=3) {
+                int slot = delta[j];
+                if (low_ordinals[slot] == -1) {
+                    low_ordinals[slot] = delta[j + 1];
+                    changed[count++] = slot;
+                }
+                high_ordinals[slot] = delta[j + 2];
+            }
+        }
+        int differing = 0;
+        for (int k=0; k<count; k++) {
+            if (low_ordinals[changed[k]] != high_ordinals[changed[k]]) { changed[differing++] = changed[k]; }
+        }
+        Arrays.sort(changed, 0, differing);
+        String[] variables  = new String[differing];
+        String[] old_values = new String[differing];
+        String[] new_values = new String[differing];
+        for (int k=0; k<differing; k++) {
+            int slot = changed[k];
+            variables[k]  = this.specification.getVariable(context, slot);
+            old_values[k] = this.specification.getValue(context, slot, from <= to ? low_ordinals[slot] : high_ordinals[slot]);
+            new_values[k] = this.specification.getValue(context, slot, from <= to ? high_ordinals[slot] : low_ordinals[slot]);
+        }
+        return new StateChangeEvent(context, null, variables, old_values, new_values, false);
+    }
+
+    /**
+       Commits a new version whenever the state is modified, see
+       {@link StateObservable}; modifications within a batch result in one
+       version. If the current values of the state differ from the current
+       version, they are committed first.
+    */
+    public void track (CallContext context, StateComplex state) {
+        synchronized (this) {
+            if (state.getSpecification(context) != this.specification) {
+                CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot track state '%(id)' in history, it has a different specification", "id", state.getId(context));
+                throw (ExceptionPreConditionViolation) null; // compiler insists
+            }
+            int size = this.current_ordinals.length;
+            for (int i=0; i<size; i++) {
+                if (state.getOrdinal(context, i) != this.current_ordinals[i]) {
+                    this.commit(context, state);
+                    break;
+                }
+            }
+            state.addStateChangeListener(context, this);
+        }
+    }
+
+    public void untrack (CallContext context, StateComplex state) {
+        state.removeStateChangeListener(context, this);
+    }
+
+    public void stateChanged (CallContext context, StateChangeEvent event) {
+        State    source     = event.getSource(context);
+        String[] variables  = event.getVariables(context);
+        String[] new_values = event.getNewValues(context);
+        if (variables.length == 0) { return; }
+        if ((source instanceof StateComplex) == false || ((StateComplex) source).getSpecification(context) != this.specification) { return; }
+        int[] slots    = new int[variables.length];
+        int[] ordinals = new int[variables.length];
+        for (int k=0; k<variables.length; k++) {
+            slots[k]    = this.specification.slotOf(context, variables[k]);
+            ordinals[k] = (slots[k] == -1 ? -1 : this.specification.getOrdinal(context, slots[k], new_values[k]));
+        }
+        this.commit(context, slots, ordinals);
+    }
+}
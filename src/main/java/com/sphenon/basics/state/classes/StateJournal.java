@@ -0,0 +1,408 @@
+package com.sphenon.basics.state.classes;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.exception.*;
+
+import com.sphenon.basics.state.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+   Append-only journal of value transitions of complex states, for
+   durability and auditing.
+
+   Each transition is a fixed size record (entity, slot, old ordinal, new
+   ordinal, timestamp). Records are collected in a buffer and written in
+   batches; {@link #sync} makes them durable with group commit: one caller
+   forces the file while the others keep appending, and all records
+   written before the force are acknowledged together.
+
+   {@link #compact} folds the journal into a snapshot file holding the
+   ordinals of all entities and truncates the journal. {@link #replay}
+   rebuilds all entity states from snapshot and journal, optionally up to
+   a point in time not earlier than the last compaction.
+
+   States report their transitions once attached via
+   {@link StateComplex#attachJournal}. The specification must declare
+   values for all variables; sub states are not journaled.
+*/
+public class StateJournal {
+
+    static public final int MAGIC         = 0x53534A4C; // "SSJL"
+    static public final int SNAPSHOT_MAGIC = 0x5353534E; // "SSSN"
+    static public final int VERSION       = 1;
+    static public final int HEADER_SIZE   = 16;
+    static public final int RECORD_SIZE   = 28;
+
+    static public StateJournal open(CallContext context, File journal_file, File snapshot_file, StateComplex.Specification specification) {
+        return new StateJournal(context, journal_file, snapshot_file, specification, 1 << 20);
+    }
+
+    protected StateJournal (CallContext context, File journal_file, File snapshot_file, StateComplex.Specification specification, int buffer_size) {
+        int size = specification.getSize(context);
+        for (int i=0; i<size; i++) {
+            if (specification.getOrdinalCount(context, i) < 0) {
+                CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot journal states, variable '%(variable)' has no declared values", "variable", specification.getVariable(context, i));
+                throw (ExceptionPreConditionViolation) null; // compiler insists
+            }
+        }
+        this.specification = specification;
+        this.journal_file  = journal_file;
+        this.snapshot_file = snapshot_file;
+        this.buffer        = ByteBuffer.allocate((buffer_size / RECORD_SIZE) * RECORD_SIZE);
+        this.lock          = new Object();
+        try {
+            this.channel = FileChannel.open(journal_file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (this.channel.size() < HEADER_SIZE) {
+                this.channel.truncate(0);
+                this.writeHeader(context, this.channel, MAGIC);
+            } else {
+                this.checkHeader(context, this.channel, MAGIC, journal_file);
+                long records = (this.channel.size() - HEADER_SIZE) / RECORD_SIZE;
+                this.channel.truncate(HEADER_SIZE + records * RECORD_SIZE); // drop a torn last record
+            }
+            this.channel.position(this.channel.size());
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentError(context, ioe, "Cannot open state journal '%(file)'", "file", journal_file.getPath());
+            throw (ExceptionEnvironmentError) null; // compiler insists
+        }
+    }
+
+    protected StateComplex.Specification specification;
+    protected File journal_file;
+    protected File snapshot_file;
+    protected FileChannel channel;
+
+    protected final Object lock;
+    protected ByteBuffer buffer;
+    protected long appended;
+    protected long written;
+    protected long durable;
+    protected boolean forcing;
+    protected boolean compacting;
+    protected int replaying;
+    protected long last_timestamp;
+
+    public StateComplex.Specification getSpecification (CallContext context) {
+        return this.specification;
+    }
+
+    protected void writeHeader (CallContext context, FileChannel channel, int magic) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(magic).putInt(VERSION).putLong(this.specification.getFingerprint(context)).flip();
+        while (header.hasRemaining()) { channel.write(header); }
+    }
+
+    protected void checkHeader (CallContext context, FileChannel channel, int magic, File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0) { }
+        header.flip();
+        if (    header.remaining() < HEADER_SIZE
+             || header.getInt() != magic
+             || header.getInt() != VERSION
+             || header.getLong() != this.specification.getFingerprint(context)) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot open '%(file)', it has a different format or specification", "file", file.getPath());
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+    }
+
+    /**
+       Appends a transition, returns its sequence number for {@link #sync};
+       timestamps in the journal never decrease
+    */
+    public long append (CallContext context, long entity, int slot, int old_ordinal, int new_ordinal) {
+        synchronized (this.lock) {
+            while (this.compacting) { this.await(context); }
+            long timestamp = Math.max(System.currentTimeMillis(), this.last_timestamp);
+            this.last_timestamp = timestamp;
+            if (this.buffer.remaining() < RECORD_SIZE) { this.writeBuffer(context); }
+            this.buffer.putLong(entity).putInt(slot).putInt(old_ordinal).putInt(new_ordinal).putLong(timestamp);
+            return ++this.appended;
+        }
+    }
+
+    protected void await (CallContext context) {
+        try {
+            this.lock.wait();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            CustomaryContext.create((Context)context).throwEnvironmentError(context, ie, "Interrupted while waiting for state journal '%(file)'", "file", this.journal_file.getPath());
+            throw (ExceptionEnvironmentError) null; // compiler insists
+        }
+    }
+
+    /**
+       Writes the buffered records to the file; caller holds the lock
+    */
+    protected void writeBuffer (CallContext context) {
+        try {
+            this.buffer.flip();
+            while (this.buffer.hasRemaining()) { this.channel.write(this.buffer); }
+            this.buffer.clear();
+            this.written = this.appended;
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentError(context, ioe, "Cannot write state journal '%(file)'", "file", this.journal_file.getPath());
+            throw (ExceptionEnvironmentError) null; // compiler insists
+        }
+    }
+
+    /**
+       Returns once the record with the given sequence number, and all
+       before it, are durable; waits for a running compaction
+    */
+    public void sync (CallContext context, long sequence) {
+        long target;
+        synchronized (this.lock) {
+            while (true) {
+                if (this.durable >= sequence) { return; }
+                if (this.forcing == false && this.compacting == false) { break; }
+                this.await(context);
+            }
+            if (this.written < sequence) { this.writeBuffer(context); }
+            target = this.written;
+            this.forcing = true;
+        }
+        boolean success = false;
+        try {
+            this.channel.force(false);
+            success = true;
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentError(context, ioe, "Cannot sync state journal '%(file)'", "file", this.journal_file.getPath());
+            throw (ExceptionEnvironmentError) null; // compiler insists
+        } finally {
+            synchronized (this.lock) {
+                this.forcing = false;
+                if (success && target > this.durable) { this.durable = target; }
+                this.lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+       Makes all records appended so far durable
+    */
+    public void commit (CallContext context) {
+        long sequence;
+        synchronized (this.lock) { sequence = this.appended; }
+        this.sync(context, sequence);
+    }
+
+    /**
+       Writes a snapshot of all entity states and truncates the journal;
+       appending, syncing and replaying are blocked meanwhile. Point in time
+       replay is afterwards possible only from the time of the snapshot on.
+    */
+    public void compact (CallContext context) {
+        synchronized (this.lock) {
+            while (this.forcing || this.compacting || this.replaying > 0) { this.await(context); }
+            this.compacting = true;
+        }
+        boolean success = false;
+        try {
+            synchronized (this.lock) { this.writeBuffer(context); }
+            Replay replay = this.replay(context, Long.MAX_VALUE, this.channel.size());
+            File temporary = new File(this.snapshot_file.getPath() + ".tmp");
+            FileChannel out = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                this.writeHeader(context, out, SNAPSHOT_MAGIC);
+                int size = this.specification.getSize(context);
+                ByteBuffer chunk = ByteBuffer.allocate(1 << 16);
+                chunk.putLong(replay.timestamp).putLong(replay.states.size());
+                for (Map.Entry<Long,int[]> entry : replay.states.entrySet()) {
+                    if (chunk.remaining() < 8 + 5 * size) {
+                        chunk.flip();
+                        while (chunk.hasRemaining()) { out.write(chunk); }
+                        chunk.clear();
+                    }
+                    chunk.putLong(entry.getKey());
+                    for (int ordinal : entry.getValue()) { StateComplexCodec.writeVarInt(chunk, ordinal); }
+                }
+                chunk.flip();
+                while (chunk.hasRemaining()) { out.write(chunk); }
+                out.force(true);
+            } finally {
+                out.close();
+            }
+            Files.move(temporary.toPath(), this.snapshot_file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.channel.truncate(HEADER_SIZE);
+            this.channel.position(HEADER_SIZE);
+            this.channel.force(true);
+            success = true;
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentError(context, ioe, "Cannot compact state journal '%(file)'", "file", this.journal_file.getPath());
+            throw (ExceptionEnvironmentError) null; // compiler insists
+        } finally {
+            synchronized (this.lock) {
+                this.compacting = false;
+                if (success) { this.durable = this.written; }
+                this.lock.notifyAll();
+            }
+        }
+    }
+
+    static protected class Replay {
+        protected Map<Long,int[]> states = new HashMap<Long,int[]>();
+        protected long timestamp = Long.MIN_VALUE;
+    }
+
+    /**
+       Ordinal vectors of all entities as of the given time (inclusive);
+       Long.MAX_VALUE for the latest state. Records appended while replaying
+       are not included; compaction waits until the replay is done.
+    */
+    public Map<Long,int[]> replay (CallContext context, long until_timestamp) {
+        long end;
+        synchronized (this.lock) {
+            while (this.compacting) { this.await(context); }
+            this.writeBuffer(context);
+            try {
+                end = this.channel.size();
+            } catch (IOException ioe) {
+                CustomaryContext.create((Context)context).throwEnvironmentError(context, ioe, "Cannot replay state journal '%(file)'", "file", this.journal_file.getPath());
+                throw (ExceptionEnvironmentError) null; // compiler insists
+            }
+            this.replaying++;
+        }
+        try {
+            return this.replay(context, until_timestamp, end).states;
+        } finally {
+            synchronized (this.lock) {
+                this.replaying--;
+                this.lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+       Like {@link #replay(CallContext,long)}, but as complex states
+       (packed ones if the specification is packable)
+    */
+    public Map<Long,StateComplex> rebuild (CallContext context, long until_timestamp) {
+        Map<Long,StateComplex> result = new HashMap<Long,StateComplex>();
+        boolean packable = this.specification.isPackable(context);
+        for (Map.Entry<Long,int[]> entry : this.replay(context, until_timestamp).entrySet()) {
+            StateComplex state = packable ? new StateComplexPacked(context, this.specification, (String[]) null)
+                                          : new StateComplex(context, this.specification, (String[]) null);
+            int[] ordinals = entry.getValue();
+            for (int i=0; i<ordinals.length; i++) {
+                if (state.getOrdinal(context, i) != ordinals[i]) {
+                    state.setOrdinal(context, i, ordinals[i]);
+                }
+            }
+            result.put(entry.getKey(), state);
+        }
+        return result;
+    }
+
+    /**
+       Reads snapshot and journal up to the given end of the journal file
+    */
+    protected Replay replay (CallContext context, long until_timestamp, long end) {
+        Replay replay = new Replay();
+        int size = this.specification.getSize(context);
+        try {
+            if (this.snapshot_file.exists()) {
+                FileChannel in = FileChannel.open(this.snapshot_file.toPath(), StandardOpenOption.READ);
+                try {
+                    this.checkHeader(context, in, SNAPSHOT_MAGIC, this.snapshot_file);
+                    ByteBuffer chunk = ByteBuffer.allocate(1 << 16);
+                    long position = HEADER_SIZE;
+                    chunk.limit(0);
+                    long count = -1;
+                    for (long n = 0; count == -1 || n < count; ) {
+                        if (chunk.remaining() < 16 + 5 * size) {
+                            chunk.compact();
+                            int read = in.read(chunk, position);
+                            if (read > 0) { position += read; }
+                            chunk.flip();
+                        }
+                        if (count == -1) {
+                            replay.timestamp = chunk.getLong();
+                            count = chunk.getLong();
+                            if (until_timestamp < replay.timestamp) {
+                                CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot replay state journal '%(file)' to a time before its last compaction", "file", this.journal_file.getPath());
+                                throw (ExceptionPreConditionViolation) null; // compiler insists
+                            }
+                            continue;
+                        }
+                        long entity = chunk.getLong();
+                        int[] ordinals = new int[size];
+                        for (int i=0; i<size; i++) { ordinals[i] = StateComplexCodec.readVarInt(context, chunk); }
+                        replay.states.put(entity, ordinals);
+                        n++;
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+
+            ByteBuffer chunk = ByteBuffer.allocate(RECORD_SIZE * 4096);
+            long position = HEADER_SIZE;
+            while (position < end) {
+                chunk.clear();
+                if (end - position < chunk.capacity()) { chunk.limit((int) (end - position)); }
+                while (chunk.hasRemaining()) {
+                    int read = this.channel.read(chunk, position + chunk.position());
+                    if (read <= 0) { break; }
+                }
+                chunk.flip();
+                position += chunk.remaining();
+                while (chunk.remaining() >= RECORD_SIZE) {
+                    long entity      = chunk.getLong();
+                    int  slot        = chunk.getInt();
+                    chunk.getInt(); // old ordinal
+                    int  new_ordinal = chunk.getInt();
+                    long timestamp   = chunk.getLong();
+                    if (timestamp > until_timestamp) { continue; }
+                    int[] ordinals = replay.states.get(entity);
+                    if (ordinals == null) {
+                        ordinals = new int[size];
+                        replay.states.put(entity, ordinals);
+                    }
+                    ordinals[slot] = new_ordinal;
+                    if (timestamp > replay.timestamp) { replay.timestamp = timestamp; }
+                }
+            }
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentError(context, ioe, "Cannot replay state journal '%(file)'", "file", this.journal_file.getPath());
+            throw (ExceptionEnvironmentError) null; // compiler insists
+        }
+        return replay;
+    }
+
+    public void close (CallContext context) {
+        this.commit(context);
+        try {
+            this.channel.close();
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentError(context, ioe, "Cannot close state journal '%(file)'", "file", this.journal_file.getPath());
+            throw (ExceptionEnvironmentError) null; // compiler insists
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.sphenon.basics.state.classes;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.exception.*;
+
+import com.sphenon.basics.state.*;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+   Transition table for complex states of one specification.
+
+   Transitions are defined in a single string, in the compact style of
+   {@link StateComplex#create}:
+
+       event1 [ : guard1 ] -> variable = value [ , variable = value ... ] ;
+       event2 [ : guard2 ] -> ...
+       ...
+
+   Example:
+       "open : main=closed & locked=false -> main=open; lock : main=closed -> locked=true"
+
+   Guards use the {@link StateComplexCondition} syntax; a missing guard is
+   always true. For an event, the first transition in definition order
+   whose guard matches is taken. The definition is split at ';', '->' and
+   ',' without regard to the guard syntax, so event names must not contain
+   ':', guards must not contain ';' or '->', and assigned values must not
+   contain ';' or ','.
+
+   Guards are compiled once. For each event, the compiled guards are
+   folded into a table indexed by the ordinals of all slots any of its
+   guards tests, so dispatching an event is one table lookup. Events whose
+   guards cannot be compiled, or whose table would exceed
+   {@link #MAXIMUM_TABLE_SIZE}, test the compiled guards in order.
+*/
+public class StateMachine {
+
+    static public final int MAXIMUM_TABLE_SIZE = 1 << 16;
+
+    static public class Transition {
+        protected Transition (String event, String guard, StateComplexConditionCompiled compiled_guard, int[] slots, String[] values, int[] ordinals) {
+            this.event          = event;
+            this.guard          = guard;
+            this.compiled_guard = compiled_guard;
+            this.slots          = slots;
+            this.values         = values;
+            this.ordinals       = ordinals;
+        }
+        protected final String   event;
+        protected final String   guard;
+        protected final StateComplexConditionCompiled compiled_guard;
+        protected final int[]    slots;
+        protected final String[] values;
+        protected final int[]    ordinals;
+
+        public String getEvent (CallContext context) {
+            return this.event;
+        }
+
+        public String getGuard (CallContext context) {
+            return this.guard;
+        }
+
+        public String toString() {
+            return "[Transition: '" + this.event + "'" + (this.guard == null ? "" : " : '" + this.guard + "'") + "]";
+        }
+    }
+
+    static public class Event {
+        protected Event (String name) {
+            this.name        = name;
+            this.transitions = new ArrayList<Transition>();
+        }
+        protected final String name;
+        protected List<Transition> transitions;
+        protected int[] slots;    // slots the table is indexed by
+        protected int[] radixes;  // number of ordinals per slot, including null
+        protected Transition[] table;
+
+        public String getName (CallContext context) {
+            return this.name;
+        }
+    }
+
+    public StateMachine (CallContext context, StateComplex.Specification specification, String definition) {
+        this.specification = specification;
+        this.events        = new HashMap<String,Event>();
+        this.parse(context, definition);
+        for (Event event : this.events.values()) {
+            this.buildTable(context, event);
+        }
+    }
+
+    protected StateComplex.Specification specification;
+    protected Map<String,Event> events;
+
+    public StateComplex.Specification getSpecification (CallContext context) {
+        return this.specification;
+    }
+
+    /**
+       Handle for dispatching without name lookup, or null if there is no
+       such event
+    */
+    public Event getEvent (CallContext context, String name) {
+        return this.events.get(name);
+    }
+
+    protected void parse (CallContext context, String definition) {
+        for (String entry : definition.split(";")) {
+            if (entry.trim().isEmpty()) { continue; }
+            int arrow = entry.indexOf("->");
+            if (arrow == -1) {
+                CustomaryContext.create((Context)context).throwConfigurationError(context, "Invalid transition '%(transition)', '->' missing", "transition", entry);
+                throw (ExceptionConfigurationError) null; // compiler insists
+            }
+            String head  = entry.substring(0, arrow);
+            int colon    = head.indexOf(':');
+            String name  = (colon == -1 ? head : head.substring(0, colon)).trim();
+            String guard = (colon == -1 ? null : head.substring(colon + 1).trim());
+            if (guard != null && guard.isEmpty()) { guard = null; }
+
+            String[] assignments = entry.substring(arrow + 2).split(",");
+            int[]    slots    = new int[assignments.length];
+            String[] values   = new String[assignments.length];
+            int[]    ordinals = new int[assignments.length];
+            for (int i=0; i<assignments.length; i++) {
+                int equals = assignments[i].indexOf('=');
+                if (equals == -1) {
+                    CustomaryContext.create((Context)context).throwConfigurationError(context, "Invalid assignment '%(assignment)' in transition '%(transition)'", "assignment", assignments[i], "transition", entry);
+                    throw (ExceptionConfigurationError) null; // compiler insists
+                }
+                String variable = assignments[i].substring(0, equals).trim();
+                String value    = assignments[i].substring(equals + 1).trim();
+                slots[i] = this.specification.slotOf(context, variable);
+                if (slots[i] == -1) {
+                    CustomaryContext.create((Context)context).throwConfigurationError(context, "Invalid transition '%(transition)', no variable '%(variable)'", "transition", entry, "variable", variable);
+                    throw (ExceptionConfigurationError) null; // compiler insists
+                }
+                ordinals[i] = this.specification.getOrdinal(context, slots[i], value);
+                if (ordinals[i] == 0 || (ordinals[i] == -1 && this.specification.getOrdinalCount(context, slots[i]) >= 0)) {
+                    CustomaryContext.create((Context)context).throwConfigurationError(context, "Invalid transition '%(transition)', '%(value)' is not a valid value of '%(variable)'", "transition", entry, "variable", variable, "value", value);
+                    throw (ExceptionConfigurationError) null; // compiler insists
+                }
+                values[i] = (ordinals[i] > 0 ? this.specification.getValue(context, slots[i], ordinals[i]) : value);
+            }
+
+            Event event = this.events.get(name);
+            if (event == null) {
+                event = new Event(name);
+                this.events.put(name, event);
+            }
+            StateComplexConditionCompiled compiled_guard = (guard == null ? null : StateComplexConditionCache.get(context).getCondition(context, guard).compile(context, this.specification));
+            event.transitions.add(new Transition(name, guard, compiled_guard, slots, values, ordinals));
+        }
+    }
+
+    protected void buildTable (CallContext context, Event event) {
+        BitSet referenced = new BitSet();
+        for (Transition transition : event.transitions) {
+            if (transition.compiled_guard == null) { continue; }
+            BitSet slots = transition.compiled_guard.getReferencedSlots(context);
+            if (slots == null) { return; }
+            referenced.or(slots);
+        }
+        int[] slots   = new int[referenced.cardinality()];
+        int[] radixes = new int[slots.length];
+        long size = 1;
+        int n = 0;
+        for (int slot = referenced.nextSetBit(0); slot >= 0; slot = referenced.nextSetBit(slot + 1)) {
+            slots[n]   = slot;
+            radixes[n] = this.specification.getOrdinalCount(context, slot) + 1;
+            size *= radixes[n++];
+            if (size > MAXIMUM_TABLE_SIZE) { return; }
+        }
+
+        Transition[] table = new Transition[(int) size];
+        int[] ordinals = new int[this.specification.getSize(context)];
+        for (int key=0; key<table.length; key++) {
+            int rest = key;
+            for (int i=slots.length-1; i>=0; i--) {
+                ordinals[slots[i]] = rest % radixes[i];
+                rest /= radixes[i];
+            }
+            for (Transition transition : event.transitions) {
+                if (transition.compiled_guard == null || transition.compiled_guard.matches(context, ordinals)) {
+                    table[key] = transition;
+                    break;
+                }
+            }
+        }
+        event.slots   = slots;
+        event.radixes = radixes;
+        event.table   = table;
+    }
+
+    /**
+       The transition the event would take in the given state, or null
+    */
+    public Transition getTransition (CallContext context, StateComplex state, Event event) {
+        if (event.table != null && state.specification == this.specification) {
+            int key = 0;
+            int i = 0;
+            for (; i<event.slots.length; i++) {
+                int ordinal = state.getOrdinal(context, event.slots[i]);
+                if (ordinal < 0) { break; }
+                key = key * event.radixes[i] + ordinal;
+            }
+            if (i == event.slots.length) { return event.table[key]; }
+        }
+        for (Transition transition : event.transitions) {
+            if (transition.compiled_guard == null || transition.compiled_guard.matches(context, state)) {
+                return transition;
+            }
+        }
+        return null;
+    }
+
+    /**
+       Applies the transition the event takes in the given state; returns it,
+       or null if no guard matches or there is no such event. The state must
+       have the specification of this machine. Atomic states are updated
+       with compare and set, guard and update apply to the same values;
+       other states are updated in a batch, so listeners receive one event.
+    */
+    public Transition fire (CallContext context, StateComplex state, String event) {
+        Event handle = this.events.get(event);
+        return handle == null ? null : this.fire(context, state, handle);
+    }
+
+    public Transition fire (CallContext context, StateComplex state, Event event) {
+        if (state.getSpecification(context) != this.specification) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot fire event '%(event)' in complex state '%(id)', it has a different specification", "event", event.name, "id", state.getId(context));
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        if (state instanceof StateComplexAtomic) {
+            StateComplexAtomic atomic = (StateComplexAtomic) state;
+            while (true) {
+                StateComplexSnapshot before = atomic.get(context);
+                Transition transition = this.getTransition(context, before, event);
+                if (transition == null) { return null; }
+                if (atomic.compareAndSet(context, before, before.with(context, transition.slots, transition.values))) { return transition; }
+            }
+        }
+        Transition transition = this.getTransition(context, state, event);
+        if (transition == null) { return null; }
+        state.beginBatch(context);
+        try {
+            for (int i=0; i<transition.slots.length; i++) {
+                if (transition.ordinals[i] > 0) {
+                    if (state.getOrdinal(context, transition.slots[i]) != transition.ordinals[i]) {
+                        state.setOrdinal(context, transition.slots[i], transition.ordinals[i]);
+                    }
+                } else {
+                    state.setValue(context, transition.slots[i], transition.values[i]);
+                }
+            }
+        } finally {
+            state.endBatch(context);
+        }
+        return transition;
+    }
+}
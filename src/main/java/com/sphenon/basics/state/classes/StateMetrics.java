@@ -0,0 +1,358 @@
+package com.sphenon.basics.state.classes;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.exception.*;
+
+import com.sphenon.basics.state.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+   Optional instrumentation of the hot paths of this package: per condition
+   string counts and latency histograms of parsing and matching, counters
+   of value modifications, validation failures and persistence calls.
+
+   Instrumented code tests {@link #isEnabled} before doing anything else,
+   so disabled metrics cost one static field read. Metrics are enabled via
+   the configuration property "com.sphenon.basics.state.Metrics" (see
+   {@link StatePackageInitialiser}) or {@link #setEnabled}, which also
+   registers the MBean "com.sphenon.basics.state:type=StateMetrics".
+
+   At most {@link #MAXIMUM_CONDITIONS} conditions are recorded
+   individually, further ones are summarised under {@link #OTHER_CONDITIONS}.
+   Queries return immutable snapshots.
+*/
+public class StateMetrics implements StateMetricsMBean {
+
+    static private volatile boolean enabled;
+
+    static public final int MAXIMUM_CONDITIONS = 1024;
+
+    static public final String OTHER_CONDITIONS = "(other conditions)";
+
+    static protected StateMetrics singleton = new StateMetrics();
+
+    static public StateMetrics get (CallContext context) {
+        return singleton;
+    }
+
+    static public boolean isEnabled (CallContext context) {
+        return enabled;
+    }
+
+    static public void setEnabled (CallContext context, boolean enabled) {
+        if (enabled) { singleton.register(context); }
+        StateMetrics.enabled = enabled;
+    }
+
+    /**
+       Latency recorder with HdrHistogram style buckets: for each power of
+       two four linear sub buckets, i.e. a relative precision of 25%,
+       covering the full range of long. Buckets are striped LongAdders,
+       created on first use, so concurrent recording does not contend.
+    */
+    static protected class Recorder {
+        static protected final int SUB_BUCKET_BITS = 2;
+
+        protected final LongAdder       count   = new LongAdder();
+        protected final LongAdder       total   = new LongAdder();
+        protected final AtomicReferenceArray<LongAdder> buckets = new AtomicReferenceArray<LongAdder>(64 << SUB_BUCKET_BITS);
+        protected final LongAccumulator maximum = new LongAccumulator(Math::max, 0L);
+
+        static protected int bucketOf (long value) {
+            if (value < (1L << SUB_BUCKET_BITS)) { return (int) Math.max(value, 0L); }
+            int magnitude = 63 - Long.numberOfLeadingZeros(value);
+            int sub       = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+            return ((magnitude - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + sub;
+        }
+
+        public void record (long value) {
+            this.count.increment();
+            this.total.add(value);
+            int bucket = bucketOf(value);
+            LongAdder adder = this.buckets.get(bucket);
+            if (adder == null) {
+                this.buckets.compareAndSet(bucket, null, new LongAdder());
+                adder = this.buckets.get(bucket);
+            }
+            adder.increment();
+            this.maximum.accumulate(value);
+        }
+
+        public Histogram snapshot () {
+            long[] buckets = new long[this.buckets.length()];
+            for (int i=0; i<buckets.length; i++) {
+                LongAdder adder = this.buckets.get(i);
+                buckets[i] = (adder == null ? 0L : adder.sum());
+            }
+            return new Histogram(this.count.sum(), this.total.sum(), this.maximum.get(), buckets);
+        }
+    }
+
+    /**
+       Immutable snapshot of a latency recorder; taken without locking, so
+       count, total and buckets may differ by concurrently recorded values
+    */
+    static public class Histogram {
+        protected Histogram (long count, long total, long maximum, long[] buckets) {
+            this.count   = count;
+            this.total   = total;
+            this.maximum = maximum;
+            this.buckets = buckets;
+        }
+
+        protected final long   count;
+        protected final long   total;
+        protected final long   maximum;
+        protected final long[] buckets;
+
+        /**
+           Upper bound of the values in the bucket
+        */
+        static protected long valueOf (int bucket) {
+            int bits = Recorder.SUB_BUCKET_BITS;
+            int magnitude = (bucket >> bits) + bits - 1;
+            if (magnitude < bits) { return bucket; }
+            long sub = bucket & ((1 << bits) - 1);
+            return ((((1L << bits) | sub) + 1) << (magnitude - bits)) - 1;
+        }
+
+        public long getCount () {
+            return this.count;
+        }
+
+        public long getTotal () {
+            return this.total;
+        }
+
+        public long getMaximum () {
+            return this.maximum;
+        }
+
+        public double getMean () {
+            return this.count == 0 ? 0.0 : ((double) this.total) / this.count;
+        }
+
+        /**
+           Upper bound of the given percentile (0..100)
+        */
+        public long getPercentile (double percentile) {
+            long count = 0;
+            for (long bucket : this.buckets) { count += bucket; }
+            if (count == 0) { return 0L; }
+            long rank = (long) Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+            for (int i=0; i<this.buckets.length; i++) {
+                seen += this.buckets[i];
+                if (seen >= rank && this.buckets[i] != 0) { return Math.min(valueOf(i), this.maximum); }
+            }
+            return this.maximum;
+        }
+
+        public String toString () {
+            return this.getCount() + " " + Math.round(this.getMean()) + "/" + this.getPercentile(50) + "/" + this.getPercentile(99) + "/" + this.getMaximum() + " ns";
+        }
+    }
+
+    static protected class ConditionRecorder {
+        protected ConditionRecorder (String condition) {
+            this.condition = condition;
+        }
+        protected final String   condition;
+        protected final Recorder parse   = new Recorder();
+        protected final Recorder matches = new Recorder();
+    }
+
+    /**
+       Immutable snapshot of the metrics of a condition
+    */
+    static public class ConditionMetrics {
+        protected ConditionMetrics (String condition, Histogram parse, Histogram matches) {
+            this.condition = condition;
+            this.parse     = parse;
+            this.matches   = matches;
+        }
+        protected final String    condition;
+        protected final Histogram parse;
+        protected final Histogram matches;
+
+        public String getCondition (CallContext context) {
+            return this.condition;
+        }
+
+        public Histogram getParse (CallContext context) {
+            return this.parse;
+        }
+
+        public Histogram getMatches (CallContext context) {
+            return this.matches;
+        }
+    }
+
+    protected final ConcurrentHashMap<String,ConditionRecorder> conditions = new ConcurrentHashMap<String,ConditionRecorder>();
+    protected final LongAdder set_values          = new LongAdder();
+    protected final LongAdder validation_failures = new LongAdder();
+    protected final LongAdder persistence_saves   = new LongAdder();
+    protected final LongAdder persistence_loads   = new LongAdder();
+    protected final LongAdder parses              = new LongAdder();
+    protected final LongAdder matches             = new LongAdder();
+    protected boolean registered;
+
+    protected ConditionRecorder getConditionRecorder (String condition) {
+        if (condition == null) { condition = ""; }
+        ConditionRecorder recorder = this.conditions.get(condition);
+        if (recorder == null) {
+            synchronized (this.conditions) {
+                recorder = this.conditions.get(condition);
+                if (recorder == null) {
+                    if (this.conditions.size() >= MAXIMUM_CONDITIONS) {
+                        condition = OTHER_CONDITIONS;
+                        recorder  = this.conditions.get(condition);
+                    }
+                    if (recorder == null) {
+                        recorder = new ConditionRecorder(condition);
+                        this.conditions.put(condition, recorder);
+                    }
+                }
+            }
+        }
+        return recorder;
+    }
+
+    static public void recordParse (CallContext context, String condition, long nanos) {
+        singleton.parses.increment();
+        singleton.getConditionRecorder(condition).parse.record(nanos);
+    }
+
+    static public void recordMatch (CallContext context, String condition, long nanos) {
+        singleton.matches.increment();
+        singleton.getConditionRecorder(condition).matches.record(nanos);
+    }
+
+    static public void recordSetValue (CallContext context) {
+        singleton.set_values.increment();
+    }
+
+    static public void recordValidationFailure (CallContext context) {
+        singleton.validation_failures.increment();
+    }
+
+    static public void recordSave (CallContext context) {
+        singleton.persistence_saves.increment();
+    }
+
+    static public void recordLoad (CallContext context) {
+        singleton.persistence_loads.increment();
+    }
+
+    /**
+       Snapshots of the metrics of all conditions recorded so far
+    */
+    public List<ConditionMetrics> getConditionMetrics (CallContext context) {
+        List<ConditionMetrics> result = new ArrayList<ConditionMetrics>(this.conditions.size());
+        for (ConditionRecorder recorder : this.conditions.values()) {
+            result.add(new ConditionMetrics(recorder.condition, recorder.parse.snapshot(), recorder.matches.snapshot()));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    protected synchronized void register (CallContext context) {
+        if (this.registered) { return; }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("com.sphenon.basics.state:type=StateMetrics");
+            if (server.isRegistered(name) == false) {
+                server.registerMBean(this, name);
+            }
+            this.registered = true;
+        } catch (Exception e) {
+            CustomaryContext.create((Context)context).throwEnvironmentError(context, e, "Cannot register state metrics MBean");
+            throw (ExceptionEnvironmentError) null; // compiler insists
+        }
+    }
+
+    public boolean getEnabled () {
+        return enabled;
+    }
+
+    public void setEnabled (boolean enabled) {
+        setEnabled(RootContext.getFallbackCallContext(), enabled);
+    }
+
+    public long getSetValueCount () {
+        return this.set_values.sum();
+    }
+
+    public long getValidationFailureCount () {
+        return this.validation_failures.sum();
+    }
+
+    public long getPersistenceSaveCount () {
+        return this.persistence_saves.sum();
+    }
+
+    public long getPersistenceLoadCount () {
+        return this.persistence_loads.sum();
+    }
+
+    public long getParseCount () {
+        return this.parses.sum();
+    }
+
+    public long getMatchCount () {
+        return this.matches.sum();
+    }
+
+    public String[] getHotConditions (int limit) {
+        List<ConditionMetrics> all = new ArrayList<ConditionMetrics>(this.getConditionMetrics(RootContext.getFallbackCallContext()));
+        Collections.sort(all, new Comparator<ConditionMetrics>() {
+            public int compare (ConditionMetrics a, ConditionMetrics b) {
+                return Long.compare(b.matches.getCount(), a.matches.getCount());
+            }
+        });
+        int size = Math.min(Math.max(limit, 0), all.size());
+        String[] result = new String[size];
+        for (int i=0; i<size; i++) {
+            result[i] = all.get(i).matches + " " + all.get(i).condition;
+        }
+        return result;
+    }
+
+    public void reset () {
+        this.conditions.clear();
+        this.set_values.reset();
+        this.validation_failures.reset();
+        this.persistence_saves.reset();
+        this.persistence_loads.reset();
+        this.parses.reset();
+        this.matches.reset();
+    }
+}
@@ -0,0 +1,37 @@
+package com.sphenon.basics.state.classes;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+/**
+   JMX view of {@link StateMetrics}
+*/
+public interface StateMetricsMBean {
+    public boolean getEnabled();
+    public void setEnabled(boolean enabled);
+    public long getSetValueCount();
+    public long getValidationFailureCount();
+    public long getPersistenceSaveCount();
+    public long getPersistenceLoadCount();
+    public long getParseCount();
+    public long getMatchCount();
+
+    /**
+       Up to the given number of conditions with the most matches, each as
+       "count mean/p50/p99/max ns condition"
+    */
+    public String[] getHotConditions(int limit);
+
+    public void reset();
+}
@@ -0,0 +1,222 @@
+package com.sphenon.basics.state.classes;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.exception.*;
+
+import com.sphenon.basics.state.*;
+
+import java.util.Arrays;
+
+/**
+   Compiled dotted name like "order.payment.status": all but the last
+   segment name sub states, the last one a variable of the complex state
+   reached (or "main" of a simple sub state).
+
+   The segments are split once. Each path remembers the sub state indexes
+   and the slot of the variable for the last {@link #MAXIMUM_BINDINGS}
+   structures it resolved (identified by the sub state name arrays and the
+   specification of the last state), so resolving paths in states of these
+   structures is O(depth) without allocation or hashing, also if they
+   alternate. Other structures are resolved by name and replace the oldest
+   remembered one.
+*/
+public class StatePath {
+
+    static public StatePath compile (CallContext context, String path) {
+        return new StatePath(context, path);
+    }
+
+    /**
+       Compiles the path and resolves it in the prototype, which must
+       contain the addressed variable
+    */
+    static public StatePath compile (CallContext context, StateComplex prototype, String path) {
+        StatePath result = new StatePath(context, path);
+        State parent = result.getParent(context, prototype);
+        if (parent == null || result.getSlot(context, parent) == -1) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot resolve path '%(path)' in complex state '%(id)'", "path", path, "id", prototype.getId(context));
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        return result;
+    }
+
+    static public final int MAXIMUM_BINDINGS = 4;
+
+    protected StatePath (CallContext context, String path) {
+        this.path          = path;
+        this.segments      = path.split("\\.", -1);
+        this.bindings      = new Binding[0];
+        this.slot_bindings = new SlotBinding[0];
+    }
+
+    /**
+       Sub state indexes per level for the sub state name arrays per level
+    */
+    static protected class Binding {
+        protected Binding (String[][] names, int[] indexes) {
+            this.names   = names;
+            this.indexes = indexes;
+        }
+        protected final String[][] names;
+        protected final int[]      indexes;
+    }
+
+    static protected class SlotBinding {
+        protected SlotBinding (StateComplex.Specification specification, int slot) {
+            this.specification = specification;
+            this.slot          = slot;
+        }
+        protected final StateComplex.Specification specification;
+        protected final int        slot;
+    }
+
+    protected final String   path;
+    protected final String[] segments;
+    // immutable, replaced as a whole, most recent last
+    protected volatile Binding[]     bindings;
+    protected volatile SlotBinding[] slot_bindings;
+
+    static protected <T> T[] add (T[] array, T element) {
+        int keep = Math.min(array.length, Math.max(MAXIMUM_BINDINGS, 1) - 1);
+        T[] result = Arrays.copyOfRange(array, array.length - keep, array.length + 1);
+        result[keep] = element;
+        return result;
+    }
+
+    public String getPath (CallContext context) {
+        return this.path;
+    }
+
+    /**
+       Number of sub state levels
+    */
+    public int getDepth (CallContext context) {
+        return this.segments.length - 1;
+    }
+
+    public String getVariable (CallContext context) {
+        return this.segments[this.segments.length - 1];
+    }
+
+    public String toString() {
+        return "[StatePath: '" + this.path + "']";
+    }
+
+    /**
+       The state at the end of the given number of levels, or null
+    */
+    protected State walk (CallContext context, State state, int levels) {
+        Binding[] bindings = this.bindings;
+        search: for (int b=bindings.length-1; b>=0; b--) {
+            Binding binding = bindings[b];
+            State current = state;
+            for (int level=0; level<levels; level++) {
+                if ((current instanceof StateComplex) == false) { return null; }
+                StateComplex complex = (StateComplex) current;
+                if (complex.sub_state_variables == null) { return null; }
+                if (binding.names[level] != complex.sub_state_variables) { continue search; }
+                current = complex.sub_states[binding.indexes[level]];
+            }
+            return current;
+        }
+        String[][] names   = new String[this.segments.length][];
+        int[]      indexes = new int[this.segments.length];
+        for (int level=0; level<levels; level++) {
+            if ((state instanceof StateComplex) == false) { return null; }
+            StateComplex complex = (StateComplex) state;
+            if (complex.sub_state_variables == null) { return null; }
+            String segment = this.segments[level];
+            int index = complex.getSubStateIndex(context).get(segment, 0, segment.length());
+            if (index == -1) { return null; }
+            names[level]   = complex.sub_state_variables;
+            indexes[level] = index;
+            state = complex.sub_states[index];
+        }
+        this.bindings = add(bindings, new Binding(names, indexes));
+        return state;
+    }
+
+    /**
+       The sub state reached by interpreting all segments as sub state
+       names, or null
+    */
+    public State getState (CallContext context, State root) {
+        return this.walk(context, root, this.segments.length);
+    }
+
+    /**
+       The state containing the addressed variable, or null
+    */
+    public State getParent (CallContext context, State root) {
+        return this.walk(context, root, this.segments.length - 1);
+    }
+
+    /**
+       Slot of the addressed variable in the given parent, or -1
+    */
+    protected int getSlot (CallContext context, State parent) {
+        if ((parent instanceof StateComplex) == false) { return -1; }
+        StateComplex complex = (StateComplex) parent;
+        SlotBinding[] slot_bindings = this.slot_bindings;
+        for (int b=slot_bindings.length-1; b>=0; b--) {
+            if (slot_bindings[b].specification == complex.specification) { return slot_bindings[b].slot; }
+        }
+        String variable = this.segments[this.segments.length - 1];
+        int slot = complex.specification.slotOf(context, variable);
+        this.slot_bindings = add(slot_bindings, new SlotBinding(complex.specification, slot));
+        return slot;
+    }
+
+    /**
+       Value of the addressed variable, or null if the path cannot be
+       resolved
+    */
+    public String getValue (CallContext context, State root) {
+        State parent = this.getParent(context, root);
+        if (parent == null) { return null; }
+        if ((parent instanceof StateComplex) == false) {
+            return this.segments[this.segments.length - 1].equals("main") ? parent.getId(context) : null;
+        }
+        int slot = this.getSlot(context, parent);
+        return slot == -1 ? null : ((StateComplex) parent).getValue(context, slot);
+    }
+
+    /**
+       Ordinal of the addressed variable if the state containing it has the
+       given specification, -1 otherwise
+    */
+    public int getOrdinal (CallContext context, State root, StateComplex.Specification specification) {
+        State parent = this.getParent(context, root);
+        if ((parent instanceof StateComplex) == false || ((StateComplex) parent).specification != specification) { return -1; }
+        int slot = this.getSlot(context, parent);
+        return slot == -1 ? -1 : ((StateComplex) parent).getOrdinal(context, slot);
+    }
+
+    public void setValue (CallContext context, State root, String value) {
+        State parent = this.getParent(context, root);
+        int slot = (parent == null ? -1 : this.getSlot(context, parent));
+        if (slot == -1) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot set '%(path)' to '%(value)' in state '%(id)' (no such variable)", "path", this.path, "value", value, "id", root.getId(context));
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        ((StateComplex) parent).setValue(context, slot, value);
+    }
+}
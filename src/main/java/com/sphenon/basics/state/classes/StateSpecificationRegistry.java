@@ -0,0 +1,211 @@
+package com.sphenon.basics.state.classes;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.configuration.*;
+
+import com.sphenon.basics.state.*;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+   Process wide registry of specifications, keyed by their definitions, so
+   that each definition is parsed once and all states created from it share
+   one {@link StateComplex.Specification}; definitions given as one string
+   (see {@link StateComplex#create}) are split and share the entries of
+   definitions given as arrays.
+
+   Registered specifications are shared, they are immutable. The registry
+   caches at most "com.sphenon.basics.state.SpecificationRegistrySize"
+   (default 4096) specifications; beyond that, specifications not used
+   since the previous sweep are evicted from the cache (as in
+   {@link StateComplexConditionCache}). An evicted specification stays
+   registered, weakly referenced, as long as it is in use, so states
+   created from the same definitions always share one specification.
+*/
+public class StateSpecificationRegistry {
+
+    static protected Configuration config;
+    static { config = Configuration.create(RootContext.getInitialisationContext(), "com.sphenon.basics.state"); };
+
+    static protected volatile StateSpecificationRegistry singleton;
+
+    static public StateSpecificationRegistry get (CallContext context) {
+        if (singleton == null) {
+            synchronized (StateSpecificationRegistry.class) {
+                if (singleton == null) {
+                    singleton = new StateSpecificationRegistry(context, config.get(context, "SpecificationRegistrySize", 4096));
+                }
+            }
+        }
+        return singleton;
+    }
+
+    /**
+       Variable definitions, or, if there are none, the number of values
+    */
+    static protected class Key {
+        protected Key (String[] definitions, int size) {
+            this.definitions = definitions;
+            this.size        = size;
+            this.hash        = (definitions == null ? size : Arrays.hashCode(definitions));
+        }
+        protected final String[] definitions;
+        protected final int      size;
+        protected final int      hash;
+
+        public int hashCode() {
+            return this.hash;
+        }
+
+        public boolean equals(Object o) {
+            if ((o instanceof Key) == false) { return false; }
+            Key other = (Key) o;
+            return this.definitions == null ? (other.definitions == null && this.size == other.size) : Arrays.equals(this.definitions, other.definitions);
+        }
+    }
+
+    static protected class Entry {
+        protected Entry(StateComplex.Specification specification) {
+            this.reference     = new WeakReference<StateComplex.Specification>(specification);
+            this.specification = specification;
+            this.referenced    = true;
+        }
+        protected final WeakReference<StateComplex.Specification> reference;
+        protected volatile StateComplex.Specification specification; // null once evicted from the cache
+        protected volatile boolean referenced;
+
+        protected StateComplex.Specification get() {
+            StateComplex.Specification specification = this.specification;
+            return specification != null ? specification : this.reference.get();
+        }
+    }
+
+    protected final ConcurrentHashMap<Key,Entry> entries;
+    protected final ReentrantLock eviction_lock;
+    protected final LongAdder evictions;
+    protected final int maximum_size;
+    protected volatile int sweep_size;
+
+    public StateSpecificationRegistry (CallContext context, int maximum_size) {
+        this.entries       = new ConcurrentHashMap<Key,Entry>();
+        this.eviction_lock = new ReentrantLock();
+        this.evictions     = new LongAdder();
+        this.maximum_size  = (maximum_size < 0 ? 0 : maximum_size);
+        this.sweep_size    = this.maximum_size;
+    }
+
+    public long getEvictions (CallContext context) {
+        return this.evictions.sum();
+    }
+
+    /**
+       Number of registered specifications, including evicted ones still
+       in use
+    */
+    public int getSize (CallContext context) {
+        return this.entries.size();
+    }
+
+    public void clear (CallContext context) {
+        this.entries.clear();
+    }
+
+    /**
+       Specification for the given variable definitions, see
+       {@link StateComplex#StateComplex(CallContext,String[],String[])};
+       if there are none, the number of values determines the variables.
+    */
+    public StateComplex.Specification getSpecification (CallContext context, String[] variables, String[] values_for_reference) {
+        int size = (values_for_reference == null ? 0 : values_for_reference.length);
+        Key key = new Key(variables, size);
+        Entry entry = this.entries.get(key);
+        StateComplex.Specification specification = (entry == null ? null : entry.get());
+        if (specification == null) {
+            return this.register(context, new Key(variables == null ? null : variables.clone(), size), variables == null ? new String[size] : variables);
+        }
+        if (entry.specification == null) { entry.specification = specification; }
+        if (entry.referenced == false) { entry.referenced = true; }
+        return specification;
+    }
+
+    /**
+       Specification for the definitions in the format of
+       {@link StateComplex#create}, i.e. separated by ";"
+    */
+    public StateComplex.Specification getSpecification (CallContext context, String definitions, String[] values_for_reference) {
+        return this.getSpecification(context, definitions.isEmpty() ? null : definitions.split(";"), values_for_reference);
+    }
+
+    protected StateComplex.Specification register (CallContext context, Key key, String[] variables_or_values) {
+        StateComplex.Specification specification = (key.definitions == null ? StateComplex.computeValidValues(context, null, variables_or_values) : StateComplex.computeValidValues(context, variables_or_values, null));
+        Entry created = new Entry(specification);
+        while (true) {
+            Entry existing = this.entries.putIfAbsent(key, created);
+            if (existing == null) { break; }
+            StateComplex.Specification registered = existing.get();
+            if (registered != null) {
+                if (existing.specification == null) { existing.specification = registered; }
+                return registered;
+            }
+            if (this.entries.replace(key, existing, created)) { break; }
+        }
+        if (this.entries.size() > this.sweep_size) {
+            this.evict(context);
+        }
+        return specification;
+    }
+
+    /**
+       Drops unused specifications from the cache and entries of collected
+       ones from the registry
+    */
+    protected void evict (CallContext context) {
+        if (this.eviction_lock.tryLock() == false) { return; }
+        try {
+            int cached = 0;
+            Iterator<Entry> iterator = this.entries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (entry.specification == null) {
+                    if (entry.reference.get() == null) { iterator.remove(); }
+                } else if (entry.referenced) {
+                    entry.referenced = false;
+                    cached++;
+                } else if (cached < this.maximum_size) {
+                    cached++;
+                } else {
+                    entry.specification = null;
+                    this.evictions.increment();
+                }
+            }
+            // entries in use cannot be removed, so sweep again only once the
+            // registry has grown noticeably
+            this.sweep_size = Math.max(this.maximum_size, 2 * this.entries.size());
+        } finally {
+            this.eviction_lock.unlock();
+        }
+    }
+}
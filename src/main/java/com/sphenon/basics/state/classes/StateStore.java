@@ -0,0 +1,296 @@
+package com.sphenon.basics.state.classes;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.exception.*;
+
+import com.sphenon.basics.state.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+   File backed store of the values of many complex states of one packable
+   specification (see {@link StateComplex.Specification#isPackable}),
+   addressed by entity index.
+
+   Each entity occupies a fixed size record holding the packed ordinals
+   (8 bytes if the layout fits into one word, 16 otherwise), the file is
+   memory mapped in segments. Reopening a store therefore costs only the
+   mapping, records are read on access.
+
+   File layout: a 64 byte header (magic, version, specification
+   fingerprint, record size, capacity) followed by the records. Records of
+   never written entities are zero, i.e. all variables unset.
+
+   Updates of a record are atomic with respect to each other (striped
+   locks). A slot never spans two words and words are read and written
+   atomically, so reading a single slot is consistent without locking; {@link View}s read in place and may observe
+   concurrent updates of other slots between reads.
+*/
+public class StateStore {
+
+    static public final int  MAGIC       = 0x53535453; // "SSTS"
+    static public final int  VERSION     = 1;
+    static public final int  HEADER_SIZE = 64;
+    static protected final long SEGMENT_SIZE = 1L << 30;
+
+    static {
+        // word access via WORDS requires 8 byte aligned positions
+        assert HEADER_SIZE % 8 == 0 && SEGMENT_SIZE % 8 == 0;
+    }
+
+    /**
+       Opens or creates the store in the given file. If the file exists,
+       its specification fingerprint must match; if its capacity is
+       smaller than the requested one, it is extended.
+    */
+    static public StateStore open(CallContext context, File file, StateComplex.Specification specification, long capacity) {
+        return new StateStore(context, file, specification, capacity);
+    }
+
+    protected StateStore (CallContext context, File file, StateComplex.Specification specification, long capacity) {
+        if (specification.isPackable(context) == false) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot create state store, specification is not packable");
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        this.specification = specification;
+        this.file          = file;
+        int[] offsets = specification.getBitOffsets(context);
+        int[] widths  = specification.getBitWidths(context);
+        int   bits    = 0;
+        for (int i=0; i<offsets.length; i++) { bits = Math.max(bits, offsets[i] + widths[i]); }
+        this.record_size = (bits > 64 ? 16 : 8);
+        this.locks = new Object[64];
+        for (int i=0; i<this.locks.length; i++) { this.locks[i] = new Object(); }
+
+        try {
+            boolean exists = file.exists() && file.length() >= HEADER_SIZE;
+            this.raf     = new RandomAccessFile(file, "rw");
+            this.channel = this.raf.getChannel();
+            if (exists) {
+                MappedByteBuffer header = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                if (    header.getInt(0) != MAGIC
+                     || header.getInt(4) != VERSION
+                     || header.getLong(8) != specification.getFingerprint(context)
+                     || header.getInt(16) != this.record_size) {
+                    this.close(context);
+                    CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot open state store '%(file)', it has a different format or specification", "file", file.getPath());
+                    throw (ExceptionPreConditionViolation) null; // compiler insists
+                }
+                capacity = Math.max(capacity, header.getLong(24));
+            }
+            this.capacity = capacity;
+            this.raf.setLength(Math.max(this.raf.length(), HEADER_SIZE + capacity * this.record_size));
+            this.header = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            this.header.putInt(0, MAGIC);
+            this.header.putInt(4, VERSION);
+            this.header.putLong(8, specification.getFingerprint(context));
+            this.header.putInt(16, this.record_size);
+            this.header.putLong(24, capacity);
+
+            long bytes = capacity * this.record_size;
+            int count = (int) ((bytes + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            this.segments = new MappedByteBuffer[count];
+            for (int i=0; i<count; i++) {
+                long position = HEADER_SIZE + i * SEGMENT_SIZE;
+                this.segments[i] = this.channel.map(FileChannel.MapMode.READ_WRITE, position, Math.min(SEGMENT_SIZE, bytes - i * SEGMENT_SIZE));
+            }
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentError(context, ioe, "Cannot open state store '%(file)'", "file", file.getPath());
+            throw (ExceptionEnvironmentError) null; // compiler insists
+        }
+    }
+
+    protected StateComplex.Specification specification;
+    protected File file;
+    protected RandomAccessFile raf;
+    protected FileChannel channel;
+    protected MappedByteBuffer header;
+    protected MappedByteBuffer[] segments;
+    protected int record_size;
+    protected long capacity;
+    protected Object[] locks;
+
+    public StateComplex.Specification getSpecification (CallContext context) {
+        return this.specification;
+    }
+
+    public long getCapacity (CallContext context) {
+        return this.capacity;
+    }
+
+    protected void checkEntity (CallContext context, long entity) {
+        if (entity < 0 || entity >= this.capacity) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Entity '%(entity)' out of range of state store '%(file)'", "entity", entity, "file", this.file.getPath());
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+    }
+
+    /**
+       Word access with acquire/release semantics, so that lock free readers
+       see whole words written by {@link #putWord}; words are 8 byte aligned
+       since segments start at HEADER_SIZE plus a multiple of SEGMENT_SIZE
+       and records are 8 or 16 bytes.
+    */
+    static protected final VarHandle WORDS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    protected long getWord (long entity, int word) {
+        long position = entity * this.record_size + (word << 3);
+        return (long) WORDS.getAcquire(this.segments[(int) (position / SEGMENT_SIZE)], (int) (position % SEGMENT_SIZE));
+    }
+
+    protected void putWord (long entity, int word, long value) {
+        long position = entity * this.record_size + (word << 3);
+        WORDS.setRelease(this.segments[(int) (position / SEGMENT_SIZE)], (int) (position % SEGMENT_SIZE), value);
+    }
+
+    public int getOrdinal (CallContext context, long entity, int slot) {
+        this.checkEntity(context, entity);
+        int offset = this.specification.bit_offsets[slot];
+        long word  = this.getWord(entity, offset >> 6);
+        return (int) ((word >>> (offset & 63)) & ((1L << this.specification.bit_widths[slot]) - 1));
+    }
+
+    public String getValue (CallContext context, long entity, int slot) {
+        return this.specification.getValue(context, slot, this.getOrdinal(context, entity, slot));
+    }
+
+    public void setOrdinal (CallContext context, long entity, int slot, int ordinal) {
+        this.checkEntity(context, entity);
+        if (ordinal < 0 || ordinal > this.specification.getOrdinalCount(context, slot)) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot set variable '%(variable)' to ordinal '%(ordinal)' in state store (invalid value)", "variable", this.specification.getVariable(context, slot), "ordinal", ordinal);
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        int  offset = this.specification.bit_offsets[slot];
+        long mask   = ((1L << this.specification.bit_widths[slot]) - 1) << (offset & 63);
+        long bits   = (((long) ordinal) << (offset & 63)) & mask;
+        synchronized (this.locks[(int) (entity & (this.locks.length - 1))]) {
+            this.putWord(entity, offset >> 6, (this.getWord(entity, offset >> 6) & ~mask) | bits);
+        }
+    }
+
+    public void setValue (CallContext context, long entity, String variable, String value) {
+        int slot = this.specification.slotOf(context, variable);
+        int ordinal = (slot == -1 ? -1 : value == null ? 0 : this.specification.getOrdinal(context, slot, value));
+        if (ordinal < 0) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot set variable '%(variable)' to '%(value)' in state store (no such variable or invalid value)", "variable", variable, "value", value);
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        this.setOrdinal(context, entity, slot, ordinal);
+    }
+
+    /**
+       Atomically replaces the whole record with the values of the state,
+       which must have the store's specification
+    */
+    public void put (CallContext context, long entity, StateComplex state) {
+        this.checkEntity(context, entity);
+        StateComplex.Specification specification = state.getSpecification(context);
+        if (specification != this.specification && (specification == null || specification.getFingerprint(context) != this.specification.getFingerprint(context))) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot put complex state '%(id)' into state store '%(file)', it has a different specification", "id", state.getId(context), "file", this.file.getPath());
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        StateComplexPacked packed = (state instanceof StateComplexPacked && state.specification == this.specification)
+                                  ? (StateComplexPacked) state
+                                  : new StateComplexPacked(context, this.specification, state.getValues(context));
+        synchronized (this.locks[(int) (entity & (this.locks.length - 1))]) {
+            this.putWord(entity, 0, packed.word0);
+            if (this.record_size == 16) { this.putWord(entity, 1, packed.word1); }
+        }
+    }
+
+    /**
+       Returns a consistent copy of the entity's values
+    */
+    public StateComplexPacked load (CallContext context, long entity) {
+        this.checkEntity(context, entity);
+        long word0, word1;
+        synchronized (this.locks[(int) (entity & (this.locks.length - 1))]) {
+            word0 = this.getWord(entity, 0);
+            word1 = (this.record_size == 16 ? this.getWord(entity, 1) : 0L);
+        }
+        return new StateComplexPacked(context, this.specification, word0, word1, null, null);
+    }
+
+    /**
+       Returns a view reading and writing the entity's record in place
+    */
+    public View get (CallContext context, long entity) {
+        this.checkEntity(context, entity);
+        return new View(context, this, entity);
+    }
+
+    /**
+       State backed by a record of the store; modifications write through.
+       Id, description and fingerprint are computed on each call since the
+       record may be changed via other views.
+    */
+    static public class View extends StateComplexView {
+        protected View (CallContext context, StateStore store, long entity) {
+            super(context, store.specification);
+            this.store  = store;
+            this.entity = entity;
+        }
+
+        protected StateStore store;
+        protected long entity;
+
+        public long getEntity (CallContext context) {
+            return this.entity;
+        }
+
+        public int getOrdinal (CallContext context, int slot) {
+            return this.store.getOrdinal(context, this.entity, slot);
+        }
+
+        protected void store (CallContext context, int slot, String value, String description, int ordinal) {
+            this.store.setOrdinal(context, this.entity, slot, ordinal);
+        }
+
+        public StateComplexPacked clone (CallContext context) {
+            return this.store.load(context, this.entity);
+        }
+    }
+
+    public void force (CallContext context) {
+        for (MappedByteBuffer segment : this.segments) {
+            segment.force();
+        }
+        this.header.force();
+    }
+
+    public void close (CallContext context) {
+        try {
+            if (this.segments != null) { this.force(context); }
+            this.channel.close();
+            this.raf.close();
+        } catch (IOException ioe) {
+            CustomaryContext.create((Context)context).throwEnvironmentError(context, ioe, "Cannot close state store '%(file)'", "file", this.file.getPath());
+            throw (ExceptionEnvironmentError) null; // compiler insists
+        }
+    }
+}
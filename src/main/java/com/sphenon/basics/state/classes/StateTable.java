@@ -0,0 +1,343 @@
+package com.sphenon.basics.state.classes;
+
+/****************************************************************************
+  Copyright 2001-2018 Sphenon GmbH
+
+  Licensed under the Apache License, Version 2.0 (the "License"); you may not
+  use this file except in compliance with the License. You may obtain a copy
+  of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+  License for the specific language governing permissions and limitations
+  under the License.
+*****************************************************************************/
+
+import com.sphenon.basics.context.*;
+import com.sphenon.basics.context.classes.*;
+import com.sphenon.basics.message.*;
+import com.sphenon.basics.notification.*;
+import com.sphenon.basics.customary.*;
+import com.sphenon.basics.exception.*;
+
+import com.sphenon.basics.state.*;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+   Column oriented storage of the values of many complex states of one
+   specification, for bulk queries.
+
+   Each variable is a column of ordinals (see
+   {@link StateComplex.Specification#getOrdinal}) in a byte array, so all
+   variables must declare their values, at most 255 each. Rows are
+   addressed by index.
+
+   {@link #select} evaluates a compiled condition (see
+   {@link StateComplexConditionCompiled}) over the columns: the decision
+   tree splits the candidate rows bitmap by the ordinals of each tested
+   column, nodes whose children are all leaves are resolved by a single
+   branch free scan. Columns with an index (see {@link #createIndex}) keep a
+   bitmap per value, so equality tests need no scan at all. Conditions
+   which cannot be compiled are matched row by row.
+
+   Like StateComplex, tables are not thread safe.
+*/
+public class StateTable {
+
+    public StateTable (CallContext context, StateComplex.Specification specification, int capacity) {
+        int count = specification.getSize(context);
+        for (int i=0; i<count; i++) {
+            int ordinals = specification.getOrdinalCount(context, i);
+            if (ordinals < 0 || ordinals > 255) {
+                CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot create state table, variable '%(variable)' does not declare between 0 and 255 values", "variable", specification.getVariable(context, i));
+                throw (ExceptionPreConditionViolation) null; // compiler insists
+            }
+        }
+        this.specification = specification;
+        this.capacity      = Math.max(capacity, 64);
+        this.columns       = new byte[count][this.capacity];
+        this.indexes       = new long[count][][];
+    }
+
+    protected StateComplex.Specification specification;
+    protected byte[][]  columns;
+    protected long[][][] indexes; // slot, ordinal, bitmap words; null if not indexed
+    protected int size;
+    protected int capacity;
+
+    public StateComplex.Specification getSpecification (CallContext context) {
+        return this.specification;
+    }
+
+    public int getSize (CallContext context) {
+        return this.size;
+    }
+
+    protected void ensureCapacity (CallContext context, int capacity) {
+        if (capacity <= this.capacity) { return; }
+        int new_capacity = Math.max(capacity, this.capacity + (this.capacity >> 1));
+        for (int i=0; i<this.columns.length; i++) {
+            this.columns[i] = Arrays.copyOf(this.columns[i], new_capacity);
+            if (this.indexes[i] != null) {
+                for (int o=0; o<this.indexes[i].length; o++) {
+                    this.indexes[i][o] = Arrays.copyOf(this.indexes[i][o], (new_capacity + 63) >> 6);
+                }
+            }
+        }
+        this.capacity = new_capacity;
+    }
+
+    /**
+       Appends a row with the initial values of the specification, returns
+       its index
+    */
+    public int addRow (CallContext context) {
+        this.ensureCapacity(context, this.size + 1);
+        int row = this.size++;
+        for (int i=0; i<this.columns.length; i++) {
+            int ordinal = this.specification.getOrdinal(context, i, this.specification.getInitialValue(context, i));
+            this.put(context, row, i, Math.max(ordinal, 0));
+        }
+        return row;
+    }
+
+    /**
+       Appends a row with the values of the given state, which must belong
+       to the specification of this table
+    */
+    public int addRow (CallContext context, StateComplex state) {
+        if (state.getSpecification(context) != this.specification) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot add complex state '%(id)' to state table, it has a different specification", "id", state.getId(context));
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        this.ensureCapacity(context, this.size + 1);
+        int row = this.size++;
+        for (int i=0; i<this.columns.length; i++) {
+            this.put(context, row, i, state.getOrdinal(context, i));
+        }
+        return row;
+    }
+
+    protected void checkRow (CallContext context, int row) {
+        if (row < 0 || row >= this.size) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Row '%(row)' out of range of state table", "row", row);
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+    }
+
+    public int getOrdinal (CallContext context, int row, int slot) {
+        this.checkRow(context, row);
+        return this.columns[slot][row] & 0xFF;
+    }
+
+    public void setOrdinal (CallContext context, int row, int slot, int ordinal) {
+        this.checkRow(context, row);
+        int count = this.specification.getOrdinalCount(context, slot);
+        if (ordinal < 0 || ordinal > count) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot set variable '%(variable)' to ordinal '%(ordinal)' in state table (invalid value)", "variable", this.specification.getVariable(context, slot), "ordinal", ordinal);
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        this.put(context, row, slot, ordinal);
+    }
+
+    protected void put (CallContext context, int row, int slot, int ordinal) {
+        long[][] index = this.indexes[slot];
+        if (index != null) {
+            long bit = 1L << row;
+            index[this.columns[slot][row] & 0xFF][row >> 6] &= ~bit;
+            index[ordinal][row >> 6] |= bit;
+        }
+        this.columns[slot][row] = (byte) ordinal;
+    }
+
+    public String getValue (CallContext context, int row, int slot) {
+        return this.specification.getValue(context, slot, this.getOrdinal(context, row, slot));
+    }
+
+    public void setValue (CallContext context, int row, String variable, String value) {
+        int slot = this.specification.slotOf(context, variable);
+        int ordinal = (slot == -1 ? -1 : this.specification.getOrdinal(context, slot, value));
+        if (ordinal < 0) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "Cannot set variable '%(variable)' to '%(value)' in state table (invalid variable or value)", "variable", variable, "value", value);
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        this.setOrdinal(context, row, slot, ordinal);
+    }
+
+    /**
+       Maintains a bitmap per value of the variable, speeding up equality
+       tests on it at the cost of one bit per row and value
+    */
+    public void createIndex (CallContext context, String variable) {
+        int slot = this.getSlot(context, variable);
+        if (this.indexes[slot] != null) { return; }
+        long[][] index = new long[this.specification.getOrdinalCount(context, slot) + 1][(this.capacity + 63) >> 6];
+        byte[] column = this.columns[slot];
+        for (int row=0; row<this.size; row++) {
+            index[column[row] & 0xFF][row >> 6] |= 1L << row;
+        }
+        this.indexes[slot] = index;
+    }
+
+    public void dropIndex (CallContext context, String variable) {
+        this.indexes[this.getSlot(context, variable)] = null;
+    }
+
+    protected int getSlot (CallContext context, String variable) {
+        int slot = this.specification.slotOf(context, variable);
+        if (slot == -1) {
+            CustomaryContext.create((Context)context).throwPreConditionViolation(context, "No variable '%(variable)' in state table", "variable", variable);
+            throw (ExceptionPreConditionViolation) null; // compiler insists
+        }
+        return slot;
+    }
+
+    /**
+       Rows matching the condition
+    */
+    public BitSet select (CallContext context, String condition) {
+        return this.select(context, StateComplexConditionCache.get(context).getCompiled(context, condition, this.specification));
+    }
+
+    public BitSet select (CallContext context, StateComplexConditionCompiled condition) {
+        long[] result = new long[(this.size + 63) >> 6];
+        if (condition.specification != this.specification || condition.root == null || condition.paths != null) {
+            Row row = new Row(context, this, 0);
+            for (int r=0; r<this.size; r++) {
+                row.row = r;
+                if (condition.matches(context, row)) { result[r >> 6] |= 1L << r; }
+            }
+        } else {
+            long[] candidates = new long[result.length];
+            Arrays.fill(candidates, -1L);
+            if ((this.size & 63) != 0) { candidates[candidates.length - 1] = (1L << this.size) - 1; }
+            this.evaluate(context, condition.root, candidates, result);
+        }
+        return BitSet.valueOf(result);
+    }
+
+    public int count (CallContext context, String condition) {
+        return this.select(context, condition).cardinality();
+    }
+
+    protected void evaluate (CallContext context, StateComplexConditionCompiled.Node node, long[] candidates, long[] result) {
+        if (node.children == null) {
+            if (node.result) { or(candidates, result); }
+            return;
+        }
+        StateComplexConditionCompiled.Node[] children = node.children;
+        byte[]   column = this.columns[node.slot];
+        long[][] index  = this.indexes[node.slot];
+
+        // ordinals leading to equal subtrees are handled together, so e.g.
+        // all true leaves of a node cost one scan
+        boolean[] handled = new boolean[children.length];
+        long[]    accept  = new long[(children.length + 63) >> 6];
+        for (int o=0; o<children.length; o++) {
+            if (handled[o] || children[o] == StateComplexConditionCompiled.FALSE) { continue; }
+            Arrays.fill(accept, 0L);
+            for (int p=o; p<children.length; p++) {
+                if (handled[p] == false && same(children[o], children[p])) {
+                    handled[p] = true;
+                    accept[p >> 6] |= 1L << p;
+                }
+            }
+            boolean leaf   = (children[o].children == null);
+            long[]  target = (leaf ? result : new long[candidates.length]);
+            if (index != null) {
+                for (int p=o; p<children.length; p++) {
+                    if (((accept[p >> 6] >>> p) & 1L) == 0) { continue; }
+                    long[] bitmap = index[p];
+                    for (int w=0; w<candidates.length; w++) { target[w] |= candidates[w] & bitmap[w]; }
+                }
+            } else {
+                this.scan(context, column, accept, candidates, target);
+            }
+            if (leaf == false) { this.evaluate(context, children[o], target, result); }
+        }
+    }
+
+    static protected boolean same (StateComplexConditionCompiled.Node a, StateComplexConditionCompiled.Node b) {
+        if (a == b) { return true; }
+        if (a.children == null || b.children == null) {
+            return a.children == null && b.children == null && a.result == b.result;
+        }
+        if (a.slot != b.slot || a.children.length != b.children.length) { return false; }
+        for (int o=0; o<a.children.length; o++) {
+            if (same(a.children[o], b.children[o]) == false) { return false; }
+        }
+        return true;
+    }
+
+    /**
+       Adds the candidate rows whose ordinal is in the accept set to the
+       result; a branch free loop over blocks of 64 rows
+    */
+    protected void scan (CallContext context, byte[] column, long[] accept, long[] candidates, long[] result) {
+        boolean single  = (accept.length == 1);
+        long    accept0 = accept[0];
+        for (int w=0; w<candidates.length; w++) {
+            long c = candidates[w];
+            if (c == 0) { continue; }
+            int  base = w << 6;
+            int  end  = Math.min(64, this.size - base);
+            long bits = 0L;
+            if (single) {
+                for (int b=end-1; b>=0; b--) {
+                    bits = (bits << 1) | ((accept0 >>> column[base + b]) & 1L);
+                }
+            } else {
+                for (int b=end-1; b>=0; b--) {
+                    int o = column[base + b] & 0xFF;
+                    bits = (bits << 1) | ((accept[o >> 6] >>> o) & 1L);
+                }
+            }
+            result[w] |= bits & c;
+        }
+    }
+
+    static protected void or (long[] source, long[] target) {
+        for (int w=0; w<source.length; w++) { target[w] |= source[w]; }
+    }
+
+    /**
+       Live view of the given row
+    */
+    public Row getRow (CallContext context, int row) {
+        this.checkRow(context, row);
+        return new Row(context, this, row);
+    }
+
+    /**
+       Complex state reading and writing a row of the table in place
+    */
+    static public class Row extends StateComplexView {
+        protected Row (CallContext context, StateTable table, int row) {
+            super(context, table.specification);
+            this.table = table;
+            this.row   = row;
+        }
+
+        protected StateTable table;
+        protected int row;
+
+        public int getRow (CallContext context) {
+            return this.row;
+        }
+
+        public int getOrdinal (CallContext context, int slot) {
+            return this.table.columns[slot][this.row] & 0xFF;
+        }
+
+        protected void store (CallContext context, int slot, String value, String description, int ordinal) {
+            this.table.put(context, this.row, slot, ordinal);
+        }
+
+        public StateComplex clone (CallContext context) {
+            return new StateComplex(context, this.specification, this.getValues(context));
+        }
+    }
+}